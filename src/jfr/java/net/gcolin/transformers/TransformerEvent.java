@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.gcolin.transformers;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event of a phase of a transformer. This class is compiled apart from the main classes, only
+ * by a JDK with JFR, and {@link TransformerMetrics} calls it through method handles if the JVM has
+ * JFR; the events are typed {@link Object} outside of it.
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+@Name("net.gcolin.transformers.Phase")
+@Label("Transformer Phase")
+@Category("Gradle Transformers")
+@Description("Parsing, merging or writing of the resources by a shadowJar transformer")
+final class TransformerEvent extends Event {
+
+  @Label("Transformer")
+  String transformer;
+
+  @Label("Phase")
+  String phase;
+
+  static Object start(String transformer, String phase) {
+    TransformerEvent event = new TransformerEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.transformer = transformer;
+    event.phase = phase;
+    event.begin();
+    return event;
+  }
+
+  static void stop(Object event) {
+    TransformerEvent jfr = (TransformerEvent) event;
+    jfr.end();
+    jfr.commit();
+  }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.gcolin.transformers.bench;
+
+import com.github.jengelman.gradle.plugins.shadow.relocation.Relocator;
+
+import net.gcolin.transformers.DomTransformer;
+import net.gcolin.transformers.XmlPool;
+
+import org.apache.tools.zip.ZipOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Benchmark of the serialization of a document by {@link DomTransformer}. The document is parsed
+ * again before each invocation because the serialization may change it.
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+@State(Scope.Benchmark)
+public class DomWriteBenchmark {
+
+  @Param({"10", "100", "1000", "10000"})
+  private int resources;
+
+  private byte[] xml;
+  private Document document;
+  private final Writer writer = new Writer();
+
+  @Setup
+  public void setup() {
+    xml = Resources.largeDocument(resources);
+  }
+
+  @Setup(Level.Invocation)
+  public void parse() throws IOException, SAXException {
+    document = XmlPool.shared().parse(Resources.open(xml));
+  }
+
+  @Benchmark
+  public Document write() throws IOException {
+    ZipOutputStream jos = Resources.newJar();
+    writer.write(document, jos);
+    jos.close();
+    return document;
+  }
+
+  private static class Writer extends DomTransformer {
+
+    Writer() {
+      super(Collections.singletonList("beans.xml"));
+    }
+
+    void write(Document document, ZipOutputStream jos) {
+      write(document, jos, "beans.xml");
+    }
+
+    @Override
+    public void transform(String path, InputStream is, List<Relocator> relocators) {
+      // not used
+    }
+
+    @Override
+    public boolean hasTransformedResource() {
+      return false;
+    }
+
+    @Override
+    public void modifyOutputStream(ZipOutputStream jos) {
+      // not used
+    }
+
+  }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.gcolin.transformers.bench;
+
+import org.apache.tools.zip.ZipOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic resources for the benchmarks. The content depends only on the number of resources, so
+ * two runs measure the same work.
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+final class Resources {
+
+  /**
+   * Number of previous fragments a fragment is ordered after.
+   */
+  static final int ORDERING_DEGREE = 8;
+
+  private Resources() {}
+
+  /**
+   * Create text files of a few lines with a shuffled first line.
+   *
+   * @param nb the number of files
+   * @return the files
+   */
+  static List<byte[]> textFiles(int nb) {
+    List<byte[]> files = new ArrayList<>(nb);
+    for (int i = 0; i < nb; i++) {
+      StringBuilder str = new StringBuilder();
+      str.append("# ").append(i).append('\n');
+      for (int j = 0; j < 10; j++) {
+        str.append("net.gcolin.service.Impl").append(i).append('_').append(j).append('\n');
+      }
+      files.add(str.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    Collections.shuffle(files, new Random(nb));
+    return files;
+  }
+
+  /**
+   * Create xml documents merged with the xpath <code>/caches/cache</code>.
+   *
+   * @param nb the number of documents
+   * @return the documents
+   */
+  static List<byte[]> cacheConfigs(int nb) {
+    List<byte[]> files = new ArrayList<>(nb);
+    for (int i = 0; i < nb; i++) {
+      StringBuilder str = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<caches>\n");
+      for (int j = 0; j < 3; j++) {
+        str.append("\t<cache>\n\t\t<name>cache").append(i).append('_').append(j)
+            .append("</name>\n\t\t<maxSizeMemory>50</maxSizeMemory>\n")
+            .append("\t\t<statistics>false</statistics>\n\t</cache>\n");
+      }
+      str.append("</caches>\n");
+      files.add(str.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    return files;
+  }
+
+  /**
+   * Create web fragments with dense ordering constraints. Each fragment is ordered after the
+   * {@link #ORDERING_DEGREE} previous fragments and before the next one, every tenth fragment is
+   * before or after the others. The fragments are shuffled.
+   *
+   * @param nb the number of fragments
+   * @return the fragments
+   */
+  static List<byte[]> webFragments(int nb) {
+    List<byte[]> files = new ArrayList<>(nb);
+    for (int i = 0; i < nb; i++) {
+      StringBuilder str = new StringBuilder(
+          "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n"
+              + "<web-fragment xmlns=\"http://xmlns.jcp.org/xml/ns/javaee\" version=\"3.1\">\n");
+      str.append("  <name>fragment").append(i).append("</name>\n  <ordering>\n    <after>\n");
+      if (i % 10 == 9) {
+        str.append("      <others/>\n");
+      }
+      for (int j = Math.max(0, i - ORDERING_DEGREE); j < i; j++) {
+        str.append("      <name>fragment").append(j).append("</name>\n");
+      }
+      str.append("    </after>\n    <before>\n");
+      if (i % 10 == 0) {
+        str.append("      <others/>\n");
+      }
+      if (i + 1 < nb) {
+        str.append("      <name>fragment").append(i + 1).append("</name>\n");
+      }
+      str.append("    </before>\n  </ordering>\n");
+      str.append("  <listener>\n    <listener-class>Listener").append(i)
+          .append("</listener-class>\n  </listener>\n");
+      str.append("  <filter>\n    <filter-name>filter").append(i)
+          .append("</filter-name>\n    <filter-class>Filter").append(i)
+          .append("</filter-class>\n  </filter>\n");
+      str.append("</web-fragment>\n");
+      files.add(str.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    Collections.shuffle(files, new Random(nb));
+    return files;
+  }
+
+  /**
+   * Create one xml document with the given number of children under the root.
+   *
+   * @param nb the number of children
+   * @return the document
+   */
+  static byte[] largeDocument(int nb) {
+    StringBuilder str = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<beans>\n");
+    for (int i = 0; i < nb; i++) {
+      str.append("  <bean id=\"bean").append(i).append("\" class=\"net.gcolin.Bean").append(i)
+          .append("\">\n    <property name=\"value\">").append(i)
+          .append("</property>\n  </bean>\n");
+    }
+    str.append("</beans>\n");
+    return str.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  static InputStream open(byte[] data) {
+    return new ByteArrayInputStream(data);
+  }
+
+  /**
+   * Create a jar which discards the bytes after deflating them.
+   *
+   * @return a jar
+   */
+  static ZipOutputStream newJar() {
+    return new ZipOutputStream(new NullOutputStream());
+  }
+
+  private static class NullOutputStream extends OutputStream {
+
+    @Override
+    public void write(int data) {
+      // discard
+    }
+
+    @Override
+    public void write(byte[] data, int off, int len) {
+      // discard
+    }
+
+  }
+
+}
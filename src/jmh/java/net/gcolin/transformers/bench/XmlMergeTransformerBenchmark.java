@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.gcolin.transformers.bench;
+
+import net.gcolin.transformers.XmlMergeTransformer;
+
+import org.apache.tools.zip.ZipOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Benchmark of {@link XmlMergeTransformer} with the DOM and the streaming merge.
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+@State(Scope.Benchmark)
+public class XmlMergeTransformerBenchmark {
+
+  @Param({"10", "100", "1000", "10000"})
+  private int resources;
+
+  @Param({"false", "true"})
+  private boolean streaming;
+
+  private List<byte[]> files;
+
+  @Setup
+  public void setup() {
+    files = Resources.cacheConfigs(resources);
+  }
+
+  @Benchmark
+  public XmlMergeTransformer merge() throws IOException {
+    XmlMergeTransformer transformer = new XmlMergeTransformer(path -> "/caches/cache",
+        Collections.singletonList("cacheconfig.xml"));
+    transformer.setStreaming(streaming);
+    for (byte[] file : files) {
+      transformer.transform("cacheconfig.xml", Resources.open(file), null);
+    }
+    ZipOutputStream jos = Resources.newJar();
+    transformer.modifyOutputStream(jos);
+    jos.close();
+    return transformer;
+  }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.gcolin.transformers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A set of byte slices with open addressing. The bytes are copied once in a single growing array
+ * and each slice is identified by its insertion index, so no object is allocated per slice.
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+final class ByteSliceSet {
+
+  private byte[] data = new byte[1024];
+  private int dataSize;
+  private int[] offsets = new int[16];
+  private int[] lengths = new int[16];
+  private int[] hashes = new int[16];
+  private int size;
+  /**
+   * Index + 1 of the slices, 0 for an empty slot.
+   */
+  private int[] table = new int[32];
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Add a slice if it is not in the set.
+   *
+   * @param bytes an array
+   * @param off the start of the slice
+   * @param len the length of the slice
+   * @return the index of the slice in the set
+   */
+  int add(byte[] bytes, int off, int len) {
+    int hash = hash(bytes, off, len);
+    int mask = table.length - 1;
+    int slot = hash & mask;
+    while (table[slot] != 0) {
+      int index = table[slot] - 1;
+      if (hashes[index] == hash && equals(index, bytes, off, len)) {
+        return index;
+      }
+      slot = (slot + 1) & mask;
+    }
+    if (size == offsets.length) {
+      offsets = Arrays.copyOf(offsets, size * 2);
+      lengths = Arrays.copyOf(lengths, size * 2);
+      hashes = Arrays.copyOf(hashes, size * 2);
+    }
+    if (dataSize + len > data.length) {
+      data = Arrays.copyOf(data, Math.max(data.length * 2, dataSize + len));
+    }
+    System.arraycopy(bytes, off, data, dataSize, len);
+    offsets[size] = dataSize;
+    lengths[size] = len;
+    hashes[size] = hash;
+    dataSize += len;
+    table[slot] = ++size;
+    if (size * 2 > table.length) {
+      rehash();
+    }
+    return size - 1;
+  }
+
+  /**
+   * Compare two slices as unsigned bytes, which is the order of the code points for UTF-8.
+   */
+  int compare(int index1, int index2) {
+    int off1 = offsets[index1];
+    int off2 = offsets[index2];
+    int len = Math.min(lengths[index1], lengths[index2]);
+    for (int i = 0; i < len; i++) {
+      int diff = (data[off1 + i] & 0xFF) - (data[off2 + i] & 0xFF);
+      if (diff != 0) {
+        return diff;
+      }
+    }
+    return lengths[index1] - lengths[index2];
+  }
+
+  void write(int index, OutputStream out) throws IOException {
+    out.write(data, offsets[index], lengths[index]);
+  }
+
+  /**
+   * Get the indexes sorted by {@link #compare(int, int)}.
+   *
+   * @return the sorted indexes
+   */
+  Integer[] sorted() {
+    Integer[] indexes = new Integer[size];
+    for (int i = 0; i < size; i++) {
+      indexes[i] = i;
+    }
+    Arrays.sort(indexes, this::compare);
+    return indexes;
+  }
+
+  private boolean equals(int index, byte[] bytes, int off, int len) {
+    if (lengths[index] != len) {
+      return false;
+    }
+    int start = offsets[index];
+    for (int i = 0; i < len; i++) {
+      if (data[start + i] != bytes[off + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void rehash() {
+    table = new int[table.length * 2];
+    int mask = table.length - 1;
+    for (int i = 0; i < size; i++) {
+      int slot = hashes[i] & mask;
+      while (table[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      table[slot] = i + 1;
+    }
+  }
+
+  private static int hash(byte[] bytes, int off, int len) {
+    int hash = 1;
+    for (int i = off; i < off + len; i++) {
+      hash = 31 * hash + bytes[i];
+    }
+    return hash ^ (hash >>> 16);
+  }
+
+}
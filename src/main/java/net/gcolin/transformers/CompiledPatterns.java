@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.gcolin.transformers;
+
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+import org.gradle.api.file.FileTreeElement;
+import org.gradle.api.specs.Spec;
+import org.gradle.api.tasks.util.PatternSet;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The patterns of a {@link PatternSet} compiled once. The literal paths are looked up in a hash set
+ * and the patterns like <code>**&#47;META-INF/web-fragment.xml</code> are checked with
+ * {@link String#endsWith(String)}. The other patterns fall back to the Ant matching of the
+ * {@link PatternSet}.
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+final class CompiledPatterns {
+
+  private static final String ANY_DIRECTORY = "**/";
+
+  private final Rules includes;
+  private final Rules excludes;
+  private final Spec<FileTreeElement> spec;
+
+  CompiledPatterns(PatternSet patternSet) {
+    includes = new Rules(patternSet.getIncludes());
+    excludes = new Rules(patternSet.getExcludes());
+    spec = patternSet.getAsSpec();
+  }
+
+  boolean isSatisfiedBy(FileTreeElement element) {
+    if (element.isDirectory() || includes.isEmpty() || !excludes.literal) {
+      return spec.isSatisfiedBy(element);
+    }
+    String path = element.getPath();
+    if (includes.matches(path)) {
+      return !excludes.matches(path);
+    }
+    return !includes.literal && spec.isSatisfiedBy(element);
+  }
+
+  /**
+   * Split an Ant pattern or a path in segments, like Gradle does: a pattern ending with a slash
+   * matches everything under the directory.
+   *
+   * @param pattern an Ant pattern or a path, with slashes
+   * @return the segments
+   */
+  static String[] tokenize(String pattern) {
+    String normalized = pattern.replace('\\', '/');
+    if (normalized.endsWith("/")) {
+      normalized += "**";
+    }
+    List<String> segments = new ArrayList<>();
+    for (String segment : normalized.split("/")) {
+      if (!segment.isEmpty()) {
+        segments.add(segment);
+      }
+    }
+    return segments.toArray(new String[segments.size()]);
+  }
+
+  /**
+   * Match a path with an Ant pattern, both split by {@link #tokenize(String)}. Unlike the
+   * {@link PatternSet} specifications, the path does not need a {@link FileTreeElement}.
+   *
+   * @param pattern the segments of the pattern
+   * @param path the segments of the path
+   * @return {@code true} if the path matches
+   */
+  static boolean matches(String[] pattern, String[] path) {
+    return matches(pattern, 0, path, 0);
+  }
+
+  private static boolean matches(String[] pattern, int patternIndex, String[] path,
+      int pathIndex) {
+    if (patternIndex == pattern.length) {
+      return pathIndex == path.length;
+    }
+    if ("**".equals(pattern[patternIndex])) {
+      for (int i = pathIndex; i <= path.length; i++) {
+        if (matches(pattern, patternIndex + 1, path, i)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    return pathIndex < path.length
+        && SelectorUtils.match(pattern[patternIndex], path[pathIndex], true)
+        && matches(pattern, patternIndex + 1, path, pathIndex + 1);
+  }
+
+  private static boolean isLiteral(String pattern) {
+    return !pattern.isEmpty() && pattern.indexOf('*') == -1 && pattern.indexOf('?') == -1
+        && pattern.indexOf('\\') == -1 && pattern.charAt(0) != '/'
+        && pattern.charAt(pattern.length() - 1) != '/' && !pattern.contains("//");
+  }
+
+  /**
+   * The literal part of include or exclude patterns.
+   */
+  private static class Rules {
+
+    private final Set<String> paths = new HashSet<>();
+    private final Set<String> suffixes = new HashSet<>();
+    private final boolean empty;
+    private boolean literal = true;
+
+    Rules(Set<String> patterns) {
+      empty = patterns.isEmpty();
+      for (String pattern : patterns) {
+        if (isLiteral(pattern)) {
+          paths.add(pattern);
+        } else if (pattern.startsWith(ANY_DIRECTORY)
+            && isLiteral(pattern.substring(ANY_DIRECTORY.length()))) {
+          String suffix = pattern.substring(ANY_DIRECTORY.length());
+          paths.add(suffix);
+          suffixes.add('/' + suffix);
+        } else {
+          literal = false;
+        }
+      }
+    }
+
+    boolean isEmpty() {
+      return empty;
+    }
+
+    boolean matches(String path) {
+      if (paths.contains(path)) {
+        return true;
+      }
+      for (String suffix : suffixes) {
+        if (path.endsWith(suffix)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+  }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package net.gcolin.transformers;
+
+import org.apache.tools.zip.ZipEntry;
+import org.apache.tools.zip.ZipOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A {@link ZipOutputStream} which writes each entry in a file of a directory, so the transformers
+ * can write their merged resources outside of a jar.
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+final class DirectoryOutputStream extends ZipOutputStream {
+
+  private final File directory;
+  private OutputStream current;
+
+  DirectoryOutputStream(File directory) {
+    super(new ByteArrayOutputStream(0));
+    this.directory = directory;
+  }
+
+  @Override
+  public void putNextEntry(ZipEntry entry) throws IOException {
+    closeEntry();
+    if (!ResourceIndex.isSafe(entry.getName())) {
+      throw new IOException("invalid entry " + entry.getName());
+    }
+    File file = ResourceIndex.mkdirs(new File(directory, entry.getName()));
+    current = new BufferedOutputStream(new FileOutputStream(file));
+  }
+
+  @Override
+  public void closeEntry() throws IOException {
+    if (current != null) {
+      current.close();
+      current = null;
+    }
+  }
+
+  @Override
+  public void write(int bt) throws IOException {
+    entry().write(bt);
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int length) throws IOException {
+    entry().write(bytes, offset, length);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (current != null) {
+      current.flush();
+    }
+  }
+
+  @Override
+  public void finish() throws IOException {
+    closeEntry();
+  }
+
+  @Override
+  public void close() throws IOException {
+    closeEntry();
+  }
+
+  private OutputStream entry() throws IOException {
+    if (current == null) {
+      throw new IOException("no current entry");
+    }
+    return current;
+  }
+
+}
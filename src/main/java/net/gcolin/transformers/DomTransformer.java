@@ -15,82 +15,441 @@
 
 package net.gcolin.transformers;
 
-import org.apache.tools.zip.ZipEntry;
+import net.gcolin.transformers.TransformerMetrics.Phase;
+
 import org.apache.tools.zip.ZipOutputStream;
 import org.gradle.api.GradleException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import org.w3c.dom.ProcessingInstruction;
+import org.w3c.dom.ls.LSInput;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.TransformerFactoryConfigurationError;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.Validator;
 
 /**
  * Transformer with DOM.
+ *
+ * <p>
+ * With validation, each merged entry is validated against the schema of its
+ * <code>xsi:schemaLocation</code> before it is written in the jar. The schemas are compiled once and
+ * shared, see {@link SchemaCache}.
+ * </p>
  * 
  * @author Gaël COLIN
  * @since 1.0
  */
 public abstract class DomTransformer extends PatternTransformer {
 
+  private static final int MAX_ERRORS = 10;
+
+  private final Logger logger = LoggerFactory.getLogger(DomTransformer.class);
+  private boolean compact;
+  private boolean validate;
+  private boolean lenientEntities;
+  private final Map<String, File> schemas = new TreeMap<>();
+
   public DomTransformer(List<String> patterns) {
     super(patterns);
   }
 
-  protected void write(Document document, ZipOutputStream jos, String name) {
+  /**
+   * Write the xml without new lines and indentation. The merged descriptors are smaller and faster
+   * to parse.
+   *
+   * @param compact {@code true} for the compact output
+   */
+  public void setCompact(boolean compact) {
+    this.compact = compact;
+  }
+
+  public boolean isCompact() {
+    return compact;
+  }
+
+  /**
+   * Validate the merged entries against their schema before writing them. An invalid entry fails
+   * the build with the errors, and the resources which are invalid on their own with their origin.
+   * An entry without schema location nor schema for its namespace is not validated.
+   *
+   * @param validate {@code true} for validating the merged entries
+   */
+  public void setValidate(boolean validate) {
+    this.validate = validate;
+  }
+
+  public boolean isValidate() {
+    return validate;
+  }
+
+  /**
+   * Read the external entities which are not in the catalog as empty, with a warning, instead of
+   * failing the build. The external DTD is never loaded.
+   *
+   * @param lenientEntities {@code true} for reading the unknown entities as empty
+   */
+  public void setLenientEntities(boolean lenientEntities) {
+    this.lenientEntities = lenientEntities;
+  }
+
+  public boolean isLenientEntities() {
+    return lenientEntities;
+  }
+
+  /**
+   * Get the catalog of the external entities.
+   *
+   * @return the lenient catalog with lenient entities, else the shared catalog
+   */
+  protected XmlCatalog getCatalog() {
+    return lenientEntities ? XmlCatalog.lenient() : XmlCatalog.shared();
+  }
+
+  @Override
+  protected XmlPool getXmlPool() {
+    return lenientEntities ? XmlPool.lenient() : super.getXmlPool();
+  }
+
+  /**
+   * Use a local schema for a schema location or a namespace. The schemas imported by a local
+   * schema are resolved like this schema. The other schemas, like the standard schemas of
+   * <code>web-fragment.xml</code> and <code>beans.xml</code>, are read from the catalog, the
+   * validation never uses the network.
+   *
+   * @param location a schema location or a namespace
+   * @param file the local schema
+   */
+  public void schema(String location, File file) {
+    schemas.put(location, file);
+  }
+
+  @Override
+  protected void describe(Map<String, Object> settings) {
+    super.describe(settings);
+    settings.put("compact", compact);
+    settings.put("validate", validate);
+    settings.put("lenientEntities", lenientEntities);
+    Map<String, String> files = new TreeMap<>();
+    for (Map.Entry<String, File> entry : schemas.entrySet()) {
+      File file = entry.getValue();
+      files.put(entry.getKey(), file.getAbsolutePath() + '@' + file.lastModified());
+    }
+    settings.put("schemas", files);
+  }
+
+  /**
+   * Get the retained resources merged in an entry, for finding the origin of a validation error.
+   * The resources are released after the entries are written.
+   *
+   * @param path the path of the entry
+   * @return the resources
+   */
+  protected List<RetainedBytes> getSources(String path) {
+    return Collections.emptyList();
+  }
+
+  @Override
+  protected void writeEntries(ZipOutputStream jos, List<String> paths, EntryRenderer renderer)
+      throws IOException {
+    if (!validate) {
+      super.writeEntries(jos, paths, renderer);
+      return;
+    }
+    // in parallel mode, the entries are rendered and validated on the shared pool
+    super.writeEntries(jos, paths, (path, out) -> {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      renderer.render(path, buffer);
+      validate(path, buffer.toByteArray());
+      buffer.writeTo(out);
+    });
+  }
+
+  private void validate(String path, byte[] xml) {
+    TransformerMetrics.Timer timer = getMetrics().start(Phase.VALIDATE);
     try {
-      jos.putNextEntry(new ZipEntry(name));
-      removeBlank(document.getDocumentElement());
-      indentBlank(document.getDocumentElement(), 1, document);
-      javax.xml.transform.Transformer transformer =
-          TransformerFactory.newInstance().newTransformer();
-
-      transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-      transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-      StreamResult result = new StreamResult(jos);
-      DOMSource source = new DOMSource(document);
-      transformer.transform(source, result);
-    } catch (IOException | TransformerFactoryConfigurationError | TransformerException ex) {
+      Schema schema = getSchema(path, xml);
+      if (schema == null) {
+        return;
+      }
+      List<String> errors = validate(schema, xml);
+      if (!errors.isEmpty()) {
+        throw new GradleException(describeErrors(path, schema, errors));
+      }
+    } finally {
+      timer.stop();
+    }
+  }
+
+  private Schema getSchema(String path, byte[] xml) {
+    String[] location;
+    try {
+      location = SchemaCache.getSchemaLocation(xml);
+    } catch (XMLStreamException ex) {
+      throw new GradleException("invalid " + path + ": " + ex.getMessage(), ex);
+    }
+    File file = location[1] == null ? null : schemas.get(location[1]);
+    if (file == null && location[0] != null) {
+      file = schemas.get(location[0]);
+    }
+    if (file == null && location[1] == null) {
+      logger.warn("{} has no schema location, it is not validated", path);
+      return null;
+    }
+    return SchemaCache.get(location[1], file, this::resolveSchema);
+  }
+
+  private LSInput resolveSchema(String type, String namespaceUri, String publicId,
+      String systemId, String baseUri) {
+    File file = systemId == null ? null : schemas.get(systemId);
+    if (file == null && namespaceUri != null) {
+      file = schemas.get(namespaceUri);
+    }
+    if (file != null && XMLConstants.W3C_XML_SCHEMA_NS_URI.equals(type)) {
+      return XmlCatalog.shared().createInput(file.toURI().toString());
+    }
+    return XmlCatalog.shared().resolveResource(type, namespaceUri, publicId, systemId, baseUri);
+  }
+
+  private List<String> validate(Schema schema, byte[] xml) {
+    List<String> errors = new ArrayList<>();
+    Validator validator = schema.newValidator();
+    validator.setResourceResolver(XmlCatalog.shared());
+    validator.setErrorHandler(new ErrorHandler() {
+
+      @Override
+      public void warning(SAXParseException exception) {
+        // ignored
+      }
+
+      @Override
+      public void error(SAXParseException exception) throws SAXException {
+        errors.add("line " + exception.getLineNumber() + ": " + exception.getMessage());
+        if (errors.size() == MAX_ERRORS) {
+          throw exception;
+        }
+      }
+
+      @Override
+      public void fatalError(SAXParseException exception) throws SAXException {
+        errors.add("line " + exception.getLineNumber() + ": " + exception.getMessage());
+        throw exception;
+      }
+
+    });
+    try {
+      validator.validate(new StreamSource(new ByteArrayInputStream(xml)));
+    } catch (SAXException ex) {
+      if (errors.isEmpty()) {
+        errors.add(ex.getMessage());
+      }
+    } catch (IOException ex) {
       throw new GradleException(ex.getMessage(), ex);
     }
+    return errors;
   }
 
-  private void removeBlank(Node node) {
-    if (node.getNodeType() == Node.TEXT_NODE && node.getTextContent().trim().isEmpty()) {
-      node.getParentNode().removeChild(node);
+  /**
+   * Describe the errors of an entry and find the resources which are invalid on their own. In
+   * parallel mode, the resources are validated on the shared pool.
+   */
+  private String describeErrors(String path, Schema schema, List<String> errors) {
+    StringBuilder message = new StringBuilder("invalid ").append(path).append(':');
+    for (String error : errors) {
+      message.append("\n  ").append(error);
+    }
+    List<RetainedBytes> sources = getSources(path);
+    if (sources.size() == 1) {
+      message.append("\nfrom ").append(describe(path, sources, 0));
+      return message.toString();
+    }
+    List<CompletableFuture<List<String>>> futures = new ArrayList<>(sources.size());
+    for (RetainedBytes source : sources) {
+      Callable<List<String>> task = () -> validate(schema, source.toByteArray());
+      if (isParallel()) {
+        futures.add(parseAsync(task));
+      } else {
+        try {
+          futures.add(CompletableFuture.completedFuture(task.call()));
+        } catch (Exception ex) {
+          throw new GradleException(ex.getMessage(), ex);
+        }
+      }
     }
-    NodeList children = node.getChildNodes();
-    for (int i = children.getLength() - 1; i >= 0; i--) {
-      removeBlank(children.item(i));
+    for (int i = 0; i < futures.size(); i++) {
+      List<String> sourceErrors = join(futures.get(i));
+      if (!sourceErrors.isEmpty()) {
+        message.append("\ninvalid ").append(describe(path, sources, i)).append(':');
+        for (String error : sourceErrors) {
+          message.append("\n  ").append(error);
+        }
+      }
     }
+    return message.toString();
   }
 
-  private void indentBlank(Node node, int nb, Document document) {
-    StringBuilder str = new StringBuilder("\n");
-    for (int j = 0; j < nb; j++) {
-      str.append("  ");
+  private String describe(String path, List<RetainedBytes> sources, int index) {
+    String origin = getOrigin(sources.get(index));
+    if (origin != null) {
+      return path + " in " + origin;
     }
-    NodeList children = node.getChildNodes();
-    boolean hasIndent = false;
-    for (int i = 0; i < children.getLength(); i++) {
-      Node inner = children.item(i);
-      if (inner.getNodeType() != Node.TEXT_NODE) {
-        node.insertBefore(document.createTextNode(str.toString()), children.item(i));
-        indentBlank(inner, nb + 1, document);
-        i++;
-        hasIndent = true;
+    return path + " number " + (index + 1) + " of " + sources.size()
+        + " in the order of the classpath";
+  }
+
+  /**
+   * Run a parsing task on the shared executor.
+   *
+   * @param task the parsing task
+   * @param <T> the type of the result
+   * @return the future result
+   */
+  protected <T> CompletableFuture<T> parseAsync(Callable<T> task) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return task.call();
+      } catch (RuntimeException ex) {
+        throw ex;
+      } catch (Exception ex) {
+        throw new GradleException(ex.getMessage(), ex);
       }
+    }, getExecutor());
+  }
+
+  /**
+   * Parse retained bytes. With a cache directory, the document is rebuilt from the cache if the
+   * same content was parsed in a previous build.
+   *
+   * @param data the bytes of a resource
+   * @return the document
+   * @throws IOException if the bytes cannot be read
+   * @throws SAXException if the xml is not well formed
+   */
+  protected Document parse(RetainedBytes data) throws IOException, SAXException {
+    TransformerMetrics.Timer timer = getMetrics().start(Phase.PARSE);
+    try {
+      return parseOrRead(data);
+    } finally {
+      timer.stop();
+    }
+  }
+
+  private Document parseOrRead(RetainedBytes data) throws IOException, SAXException {
+    MergeCache cache = getCache();
+    if (cache == null) {
+      try (InputStream in = data.openStream()) {
+        return getXmlPool().parse(in);
+      }
+    }
+    byte[] bytes = data.toByteArray();
+    String key = MergeCache.key("document:" + getCatalog().getCacheKey(), bytes);
+    byte[] entry = cache.read(key);
+    if (entry != null) {
+      Document document = getXmlPool().newDocument();
+      NodeCodec.readChildren(document, document,
+          new DataInputStream(new ByteArrayInputStream(entry)));
+      return document;
+    }
+    Document document = getXmlPool().parse(new ByteArrayInputStream(bytes));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    NodeCodec.writeChildren(document, new DataOutputStream(out));
+    cache.write(key, out.toByteArray());
+    return document;
+  }
+
+  /**
+   * Write a document in the jar. The document is not modified: blank text is dropped and the
+   * elements are indented while walking the tree, unless in compact mode.
+   *
+   * @param document the document
+   * @param jos the jar
+   * @param name the name of the entry
+   */
+  protected void write(Document document, ZipOutputStream jos, String name) {
+    try {
+      writeEntries(jos, Collections.singletonList(name), (path, out) -> write(document, out));
+    } catch (IOException ex) {
+      throw new GradleException(ex.getMessage(), ex);
+    }
+  }
+
+  /**
+   * Write a document in a stream, like {@link #write(Document, ZipOutputStream, String)}.
+   *
+   * @param document the document
+   * @param out the output
+   */
+  protected void write(Document document, OutputStream out) {
+    TransformerMetrics.Timer timer = getMetrics().start(Phase.WRITE);
+    try {
+      XmlIndentWriter writer = new XmlIndentWriter(out, !compact);
+      writeChildren(document, writer);
+      writer.end();
+    } catch (IOException | XMLStreamException ex) {
+      throw new GradleException(ex.getMessage(), ex);
+    } finally {
+      timer.stop();
     }
-    if (hasIndent) {
-      str.delete(str.length() - 2, str.length());
-      node.appendChild(document.createTextNode(str.toString()));
+  }
+
+  private void writeChildren(Node node, XmlIndentWriter writer) throws XMLStreamException {
+    for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+      switch (child.getNodeType()) {
+        case Node.ELEMENT_NODE:
+          writer.startElement(child.getNodeName());
+          NamedNodeMap attributes = child.getAttributes();
+          for (int i = 0; i < attributes.getLength(); i++) {
+            Node attribute = attributes.item(i);
+            writer.attribute(attribute.getNodeName(), attribute.getNodeValue());
+          }
+          writeChildren(child, writer);
+          writer.endElement();
+          break;
+        case Node.TEXT_NODE:
+          if (node.getNodeType() != Node.DOCUMENT_NODE) {
+            writer.text(child.getNodeValue());
+          }
+          break;
+        case Node.CDATA_SECTION_NODE:
+          writer.cdata(child.getNodeValue());
+          break;
+        case Node.COMMENT_NODE:
+          writer.comment(child.getNodeValue());
+          break;
+        case Node.PROCESSING_INSTRUCTION_NODE:
+          writer.processingInstruction(((ProcessingInstruction) child).getTarget(),
+              ((ProcessingInstruction) child).getData());
+          break;
+        case Node.ENTITY_REFERENCE_NODE:
+          writeChildren(child, writer);
+          break;
+        default:
+          break;
+      }
     }
   }
 
@@ -0,0 +1,412 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.gcolin.transformers;
+
+import com.github.jengelman.gradle.plugins.shadow.relocation.Relocator;
+
+import net.gcolin.transformers.TransformerMetrics.Phase;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.zip.ZipOutputStream;
+import org.gradle.api.GradleException;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Merge line based files in one streaming pass: service lists, <code>spring.factories</code> and
+ * properties files.
+ *
+ * <p>
+ * In lines mode, the lines are trimmed and the blank lines and the comments are dropped. In
+ * properties mode, the continuation lines are joined and a value is kept verbatim, the values of a
+ * key which repeats are joined with the value separator. The values of a list key, all the keys of
+ * a <code>.factories</code> file or a key of {@link #setListKeys(Collection)}, are split on the
+ * value separator, trimmed and deduplicated. The lines, keys and values are deduplicated without
+ * creating Strings. The output is sorted by the UTF-8 bytes, the values of a key keep their order.
+ * </p>
+ *
+ * <p>
+ * The files are read as they come and are not retained, so the memory budget has no effect. The
+ * deduplication option has no effect either: the identical files are merged into the same lines.
+ * </p>
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+public class LineMergeTransformer extends PatternTransformer {
+
+  private static final byte[] NEW_LINE = {'\n'};
+  private static final byte[] EQUALS = {'='};
+
+  /**
+   * The format of the files.
+   */
+  public enum Mode {
+    /**
+     * Properties mode for the <code>.properties</code> and <code>.factories</code> files, lines
+     * mode for the others.
+     */
+    AUTO,
+    LINES,
+    PROPERTIES
+  }
+
+  private final Map<String, Merge> merges = new TreeMap<>();
+  private Mode mode = Mode.AUTO;
+  private byte[] valueSeparator = {','};
+  private Set<String> listKeys = Collections.emptySet();
+
+  public LineMergeTransformer(List<String> patterns) {
+    super(patterns);
+  }
+
+  public void setMode(Mode mode) {
+    this.mode = mode;
+  }
+
+  /**
+   * Set the separator of the values in properties mode. With {@code null}, the values of the list
+   * keys are not split and the values of a key which repeats are joined with a comma.
+   *
+   * @param valueSeparator a character or {@code null}
+   */
+  public void setValueSeparator(Character valueSeparator) {
+    this.valueSeparator = valueSeparator == null ? null : new byte[] {(byte) (char) valueSeparator};
+  }
+
+  /**
+   * Set the keys whose value is a list in the properties files. All the keys of a
+   * <code>.factories</code> file are lists.
+   *
+   * @param listKeys the keys, as written in the files
+   */
+  public void setListKeys(Collection<String> listKeys) {
+    this.listKeys = new TreeSet<>(listKeys);
+  }
+
+  @Override
+  protected void describe(Map<String, Object> settings) {
+    super.describe(settings);
+    settings.put("mode", mode);
+    settings.put("valueSeparator", valueSeparator == null ? null : (char) valueSeparator[0]);
+    settings.put("listKeys", listKeys);
+  }
+
+  @Override
+  public void transform(String path, InputStream is, List<Relocator> relocators) {
+    Merge merge = merges.get(path);
+    if (merge == null) {
+      merge = new Merge(isProperties(path), path.endsWith(".factories"));
+      merges.put(path, merge);
+    }
+    TransformerMetrics.Timer timer = getMetrics().start(Phase.PARSE);
+    try {
+      InputStream in = is;
+      if (relocators != null && !relocators.isEmpty()) {
+        in = new ByteArrayInputStream(relocate(path, IOUtils.toByteArray(is), relocators));
+      }
+      getMetrics().resource(merge.read(in));
+    } catch (IOException ex) {
+      throw new GradleException(ex.getMessage(), ex);
+    } finally {
+      timer.stop();
+    }
+  }
+
+  private boolean isProperties(String path) {
+    if (mode == Mode.AUTO) {
+      return path.endsWith(".properties") || path.endsWith(".factories");
+    }
+    return mode == Mode.PROPERTIES;
+  }
+
+  @Override
+  public boolean hasTransformedResource() {
+    return !merges.isEmpty();
+  }
+
+  @Override
+  public void modifyOutputStream(ZipOutputStream jos) {
+    if (!hasTransformedResource()) {
+      return;
+    }
+    try {
+      writeEntries(jos, new ArrayList<>(merges.keySet()), this::render);
+    } catch (IOException ex) {
+      throw new GradleException(ex.getMessage(), ex);
+    } finally {
+      merges.clear();
+    }
+    writeReport();
+  }
+
+  private void render(String path, OutputStream out) throws IOException {
+    Merge merge = merges.get(path);
+    TransformerMetrics.Timer timer = getMetrics().start(Phase.MERGE);
+    Integer[] order = merge.keys.sorted();
+    timer.stop();
+    timer = getMetrics().start(Phase.WRITE);
+    try {
+      // the zip stream deflates each write, the lines are small
+      OutputStream buffered = new BufferedOutputStream(out, 8192);
+      merge.write(order, buffered);
+      buffered.flush();
+    } finally {
+      timer.stop();
+    }
+  }
+
+  private static boolean isWhitespace(byte ch) {
+    return ch == ' ' || ch == '\t' || ch == '\f' || ch == '\r';
+  }
+
+  /**
+   * The merge of the files of a path.
+   */
+  private class Merge {
+
+    private final boolean properties;
+    private final boolean lists;
+    private final ByteSliceSet keys = new ByteSliceSet();
+    private final ByteSliceSet values = new ByteSliceSet();
+    /**
+     * Pairs of key index and value index.
+     */
+    private final ByteSliceSet pairs = new ByteSliceSet();
+    private final byte[] pair = new byte[8];
+    private int[][] valuesByKey = new int[16][];
+    private int[] valueCounts = new int[16];
+    private boolean[] listByKey = new boolean[16];
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private boolean continuation;
+    private boolean lineStart = true;
+
+    Merge(boolean properties, boolean lists) {
+      this.properties = properties;
+      this.lists = lists;
+    }
+
+    long read(InputStream in) throws IOException {
+      byte[] buffer = new byte[8192];
+      long total = 0;
+      int nb;
+      while ((nb = in.read(buffer)) != -1) {
+        total += nb;
+        int start = 0;
+        for (int i = 0; i < nb; i++) {
+          if (buffer[i] == '\n') {
+            append(buffer, start, i - start);
+            endOfLine();
+            start = i + 1;
+          }
+        }
+        append(buffer, start, nb - start);
+      }
+      endOfLine();
+      if (continuation) {
+        // the last line ends with a backslash, Properties keeps the entry
+        property(lineLength);
+      }
+      continuation = false;
+      lineLength = 0;
+      return total;
+    }
+
+    private void append(byte[] bytes, int off, int len) {
+      if (lineStart && continuation) {
+        // the leading whitespace of a continuation line is not part of the value
+        while (len > 0 && isWhitespace(bytes[off])) {
+          off++;
+          len--;
+        }
+      }
+      if (len > 0) {
+        lineStart = false;
+      }
+      if (lineLength + len > line.length) {
+        line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + len));
+      }
+      System.arraycopy(bytes, off, line, lineLength, len);
+      lineLength += len;
+    }
+
+    private void endOfLine() {
+      lineStart = true;
+      int end = lineLength;
+      if (end > 0 && line[end - 1] == '\r') {
+        end--;
+      }
+      if (properties) {
+        int backslashes = 0;
+        while (backslashes < end && line[end - 1 - backslashes] == '\\') {
+          backslashes++;
+        }
+        if (backslashes % 2 == 1) {
+          lineLength = end - 1;
+          continuation = true;
+          return;
+        }
+        continuation = false;
+        property(end);
+      } else {
+        line(end);
+      }
+      lineLength = 0;
+    }
+
+    private void line(int end) {
+      int start = 0;
+      while (start < end && isWhitespace(line[start])) {
+        start++;
+      }
+      while (end > start && isWhitespace(line[end - 1])) {
+        end--;
+      }
+      if (start < end && line[start] != '#') {
+        keys.add(line, start, end - start);
+      }
+    }
+
+    private void property(int end) {
+      int start = 0;
+      while (start < end && isWhitespace(line[start])) {
+        start++;
+      }
+      if (start == end || line[start] == '#' || line[start] == '!') {
+        return;
+      }
+      int keyEnd = start;
+      while (keyEnd < end && line[keyEnd] != '=' && line[keyEnd] != ':'
+          && !isWhitespace(line[keyEnd])) {
+        if (line[keyEnd] == '\\') {
+          keyEnd++;
+        }
+        keyEnd++;
+      }
+      keyEnd = Math.min(keyEnd, end);
+      int key = addKey(start, keyEnd - start);
+      int valueStart = keyEnd;
+      while (valueStart < end && isWhitespace(line[valueStart])) {
+        valueStart++;
+      }
+      if (valueStart < end && (line[valueStart] == '=' || line[valueStart] == ':')) {
+        valueStart++;
+      }
+      while (valueStart < end && isWhitespace(line[valueStart])) {
+        valueStart++;
+      }
+      if (!listByKey[key]) {
+        // the value is kept verbatim, like Properties reads it
+        addValue(key, valueStart, end);
+        return;
+      }
+      int itemStart = valueStart;
+      for (int i = valueStart; i <= end; i++) {
+        if (i == end || valueSeparator != null && line[i] == valueSeparator[0]) {
+          int itemEnd = i;
+          while (itemStart < itemEnd && isWhitespace(line[itemStart])) {
+            itemStart++;
+          }
+          while (itemEnd > itemStart && isWhitespace(line[itemEnd - 1])) {
+            itemEnd--;
+          }
+          addValue(key, itemStart, itemEnd);
+          itemStart = i + 1;
+        }
+      }
+    }
+
+    private int addKey(int off, int len) {
+      int size = keys.size();
+      int key = keys.add(line, off, len);
+      if (key == size) {
+        if (key == valueCounts.length) {
+          valuesByKey = Arrays.copyOf(valuesByKey, key * 2);
+          valueCounts = Arrays.copyOf(valueCounts, key * 2);
+          listByKey = Arrays.copyOf(listByKey, key * 2);
+        }
+        // once for each distinct key
+        listByKey[key] = lists
+            || !listKeys.isEmpty() && listKeys.contains(new String(line, off, len,
+                StandardCharsets.UTF_8));
+      }
+      return key;
+    }
+
+    private void addValue(int key, int start, int end) {
+      if (start == end) {
+        return;
+      }
+      int value = values.add(line, start, end - start);
+      int size = pairs.size();
+      write(pair, 0, key);
+      write(pair, 4, value);
+      if (pairs.add(pair, 0, pair.length) < size) {
+        return;
+      }
+      int[] list = valuesByKey[key];
+      int count = valueCounts[key];
+      if (list == null) {
+        list = new int[4];
+      } else if (count == list.length) {
+        list = Arrays.copyOf(list, count * 2);
+      }
+      list[count] = value;
+      valuesByKey[key] = list;
+      valueCounts[key] = count + 1;
+    }
+
+    private void write(byte[] bytes, int off, int value) {
+      bytes[off] = (byte) (value >>> 24);
+      bytes[off + 1] = (byte) (value >>> 16);
+      bytes[off + 2] = (byte) (value >>> 8);
+      bytes[off + 3] = (byte) value;
+    }
+
+    void write(Integer[] order, OutputStream out) throws IOException {
+      for (int key : order) {
+        keys.write(key, out);
+        if (properties) {
+          out.write(EQUALS);
+          for (int i = 0; i < valueCounts[key]; i++) {
+            if (i > 0) {
+              out.write(valueSeparator == null ? new byte[] {','} : valueSeparator);
+            }
+            values.write(valuesByKey[key][i], out);
+          }
+        }
+        out.write(NEW_LINE);
+      }
+    }
+
+  }
+
+}
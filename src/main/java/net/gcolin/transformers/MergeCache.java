@@ -0,0 +1,205 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.gcolin.transformers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A cache on disk of the data extracted from the resources, keyed by a SHA-256 digest of their
+ * content.
+ *
+ * <p>
+ * The size of the cache is capped: when a write exceeds it, the least recently used entries are
+ * deleted until the cache is back to three quarters of its maximum size.
+ * </p>
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+final class MergeCache {
+
+  private static final int VERSION = 2;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final Logger logger = LoggerFactory.getLogger(MergeCache.class);
+  private final File directory;
+  private final long maxSize;
+  private long size = -1;
+
+  /**
+   * Create a cache.
+   *
+   * @param directory the directory of the cache
+   * @param maxSize the maximum number of bytes of the entries
+   */
+  MergeCache(File directory, long maxSize) {
+    this.directory = directory;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Compute the key of a resource.
+   *
+   * @param kind the kind of data extracted from the resource
+   * @param data the content of the resource
+   * @return the key
+   */
+  static String key(String kind, byte[] data) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update((kind + VERSION).getBytes(StandardCharsets.UTF_8));
+      byte[] hash = digest.digest(data);
+      char[] str = new char[hash.length * 2];
+      for (int i = 0; i < hash.length; i++) {
+        str[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+        str[i * 2 + 1] = HEX[hash[i] & 0xF];
+      }
+      return new String(str);
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /**
+   * Read an entry.
+   *
+   * @param key the key of the entry
+   * @return the entry or {@code null} if missing
+   */
+  byte[] read(String key) {
+    File file = file(key);
+    if (!file.isFile()) {
+      return null;
+    }
+    try {
+      byte[] data = Files.readAllBytes(file.toPath());
+      // the entries used recently are evicted last
+      if (!file.setLastModified(System.currentTimeMillis())) {
+        logger.debug("cannot touch {}", file);
+      }
+      return data;
+    } catch (IOException ex) {
+      logger.warn("cannot read {}", file, ex);
+      return null;
+    }
+  }
+
+  /**
+   * Write an entry. The failures are logged because the cache is optional.
+   *
+   * @param key the key of the entry
+   * @param data the entry
+   */
+  void write(String key, byte[] data) {
+    File file = file(key);
+    try {
+      File parent = file.getParentFile();
+      if (!parent.isDirectory() && !parent.mkdirs()) {
+        throw new IOException("cannot create " + parent);
+      }
+      File tmp = File.createTempFile(key, ".tmp", parent);
+      Files.write(tmp.toPath(), data);
+      try {
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException ex) {
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      added(data.length);
+    } catch (IOException ex) {
+      logger.warn("cannot write {}", file, ex);
+    }
+  }
+
+  private synchronized void added(long length) {
+    if (size < 0) {
+      // the first write of the build, the entries of the previous builds are counted
+      size = 0;
+      for (File file : entries()) {
+        size += file.length();
+      }
+    } else {
+      size += length;
+    }
+    if (size > maxSize) {
+      evict();
+    }
+  }
+
+  private void evict() {
+    List<File> files = entries();
+    long[] modified = new long[files.size()];
+    size = 0;
+    for (int i = 0; i < files.size(); i++) {
+      modified[i] = files.get(i).lastModified();
+      size += files.get(i).length();
+    }
+    List<Integer> order = new ArrayList<>();
+    for (int i = 0; i < files.size(); i++) {
+      order.add(i);
+    }
+    order.sort(Comparator.comparingLong(i -> modified[i]));
+    long target = maxSize / 4 * 3;
+    int deleted = 0;
+    for (int i : order) {
+      if (size <= target) {
+        break;
+      }
+      File file = files.get(i);
+      long length = file.length();
+      if (file.delete()) {
+        size -= length;
+        deleted++;
+      }
+    }
+    logger.info("the cache {} exceeded {} bytes, {} entries deleted", directory, maxSize,
+        deleted);
+  }
+
+  private List<File> entries() {
+    List<File> files = new ArrayList<>();
+    File[] parents = directory.listFiles(File::isDirectory);
+    if (parents != null) {
+      for (File parent : parents) {
+        File[] children = parent.listFiles(
+            file -> file.isFile() && !file.getName().endsWith(".tmp"));
+        if (children != null) {
+          for (File child : children) {
+            files.add(child);
+          }
+        }
+      }
+    }
+    return files;
+  }
+
+  private File file(String key) {
+    return new File(new File(directory, key.substring(0, 2)), key.substring(2));
+  }
+
+}
@@ -0,0 +1,312 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package net.gcolin.transformers;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.file.FileTreeElement;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.SetProperty;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.work.FileChange;
+import org.gradle.work.Incremental;
+import org.gradle.work.InputChanges;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+import org.gradle.workers.WorkQueue;
+import org.gradle.workers.WorkerExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.inject.Inject;
+
+/**
+ * Merge the resources of a classpath in a directory before the jar is built, with the same
+ * transformers as shadow. The task is cacheable and the merged resources are copied in the jar by
+ * a {@link MergedResourcesTransformer}.
+ *
+ * <p>
+ * The resources handled by the transformers are extracted from each classpath entry in parallel
+ * with the Worker API and kept in the temporary directory of the task. On the next build, only the
+ * changed classpath entries are extracted again. The extracted resources are given to the
+ * transformers in the order of the classpath, each resource to the first transformer which accepts
+ * it, like shadow does. The merged resources are relocated by
+ * {@link MergedResourcesTransformer} when they are copied in the jar, with the relocators of shadow.
+ * </p>
+ *
+ * <p>
+ * The task is not up to date and not cached when an option of a transformer cannot be described,
+ * like a merge xpath closure without key. It requires Gradle 5.6 for {@link InputChanges} and
+ * {@link WorkerExecutor#noIsolation()}.
+ * </p>
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+@CacheableTask
+public class MergeResourcesTask extends DefaultTask {
+
+  private final Logger logger = LoggerFactory.getLogger(MergeResourcesTask.class);
+  private final WorkerExecutor workerExecutor;
+  private final ConfigurableFileCollection classpath;
+  private final List<PatternTransformer> transformers = new ArrayList<>();
+  private File destinationDir;
+
+  /**
+   * Create the task.
+   *
+   * @param workerExecutor the executor of the Worker API
+   */
+  @Inject
+  public MergeResourcesTask(WorkerExecutor workerExecutor) {
+    this.workerExecutor = workerExecutor;
+    classpath = getProject().files();
+    destinationDir = new File(getProject().getBuildDir(), "merged-resources/" + getName());
+    getOutputs().upToDateWhen(task -> getUncacheableReason() == null);
+    getOutputs().doNotCacheIf("a transformer has an option which cannot be described",
+        task -> getUncacheableReason() != null);
+  }
+
+  @Classpath
+  @Incremental
+  public ConfigurableFileCollection getClasspath() {
+    return classpath;
+  }
+
+  public void setClasspath(FileCollection classpath) {
+    this.classpath.setFrom(classpath);
+  }
+
+  @Internal
+  public List<PatternTransformer> getTransformers() {
+    return transformers;
+  }
+
+  /**
+   * Add a transformer.
+   *
+   * @param transformer a transformer
+   */
+  public void transform(PatternTransformer transformer) {
+    transformers.add(transformer);
+  }
+
+  /**
+   * Get the options of the transformers which change the merged resources.
+   *
+   * @return a description of each transformer
+   */
+  @Input
+  public List<String> getSettings() {
+    List<String> settings = new ArrayList<>();
+    for (PatternTransformer transformer : transformers) {
+      Map<String, Object> options = new TreeMap<>();
+      transformer.describe(options);
+      settings.add(transformer.getClass().getName() + options);
+    }
+    return settings;
+  }
+
+  private String getUncacheableReason() {
+    for (PatternTransformer transformer : transformers) {
+      String reason = transformer.getUncacheableReason();
+      if (reason != null) {
+        return reason;
+      }
+    }
+    return null;
+  }
+
+  @OutputDirectory
+  public File getDestinationDir() {
+    return destinationDir;
+  }
+
+  public void setDestinationDir(File destinationDir) {
+    this.destinationDir = destinationDir;
+  }
+
+  /**
+   * Extract the resources of the changed classpath entries, then merge all the resources.
+   *
+   * @param changes the changes of the classpath
+   */
+  @TaskAction
+  public void merge(InputChanges changes) {
+    String reason = getUncacheableReason();
+    if (reason != null) {
+      logger.warn("{}, the merged resources are not cached", reason);
+    }
+    try {
+      Map<File, File> indexes = extract(changes);
+      for (PatternTransformer transformer : transformers) {
+        // in the build directory, not in the temporary directory of the system
+        transformer.setDefaultSpillDirectory(new File(getTemporaryDir(), "spill"));
+      }
+      ResourceIndex.delete(destinationDir);
+      DirectoryOutputStream out = new DirectoryOutputStream(destinationDir);
+      for (Entry<File, File> entry : indexes.entrySet()) {
+        for (String path : ResourceIndex.read(entry.getValue())) {
+          File file = ResourceIndex.file(entry.getValue(), path);
+          FileTreeElement element = ResourceElement.create(file, path);
+          for (PatternTransformer transformer : transformers) {
+            if (transformer.canTransformResource(element)) {
+              transformer.setOrigin(entry.getKey().getPath());
+              try (InputStream in = new FileInputStream(file)) {
+                transformer.transform(path, in, Collections.emptyList());
+              } finally {
+                transformer.setOrigin(null);
+              }
+              break;
+            }
+          }
+        }
+      }
+      if (!destinationDir.isDirectory() && !destinationDir.mkdirs()) {
+        throw new IOException("cannot create " + destinationDir);
+      }
+      for (PatternTransformer transformer : transformers) {
+        if (transformer.hasTransformedResource()) {
+          transformer.modifyOutputStream(out);
+        }
+      }
+      out.close();
+    } catch (IOException ex) {
+      throw new GradleException(ex.getMessage(), ex);
+    }
+  }
+
+  /**
+   * Extract the resources of the classpath entries which changed or were never extracted.
+   *
+   * @return the directory of the extracted resources of each classpath entry, in classpath order
+   */
+  private Map<File, File> extract(InputChanges changes) throws IOException {
+    File work = new File(getTemporaryDir(), "resources");
+    Map<File, File> indexes = new LinkedHashMap<>();
+    for (File entry : classpath.getFiles()) {
+      byte[] path = entry.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+      indexes.put(entry, new File(work, MergeCache.key("classpath", path)));
+    }
+
+    Set<File> stale = new HashSet<>();
+    if (changes.isIncremental()) {
+      for (FileChange change : changes.getFileChanges(classpath)) {
+        File entry = findEntry(change.getFile(), indexes.keySet());
+        if (entry != null) {
+          stale.add(entry);
+        }
+      }
+      File[] extracted = work.listFiles();
+      if (extracted != null) {
+        for (File dir : extracted) {
+          if (!indexes.containsValue(dir)) {
+            ResourceIndex.delete(dir);
+          }
+        }
+      }
+    } else {
+      ResourceIndex.delete(work);
+      stale.addAll(indexes.keySet());
+    }
+    for (Entry<File, File> entry : indexes.entrySet()) {
+      if (!ResourceIndex.exists(entry.getValue())) {
+        stale.add(entry.getKey());
+      }
+    }
+
+    Set<String> includes = new HashSet<>();
+    for (PatternTransformer transformer : transformers) {
+      includes.addAll(transformer.getIncludes());
+    }
+    WorkQueue queue = workerExecutor.noIsolation();
+    for (File entry : stale) {
+      queue.submit(ExtractResources.class, parameters -> {
+        parameters.getSource().set(entry);
+        parameters.getDestination().set(indexes.get(entry));
+        parameters.getIncludes().set(includes);
+      });
+    }
+    queue.await();
+    logger.info("extract the resources of {} classpath entries out of {}", stale.size(),
+        indexes.size());
+    return indexes;
+  }
+
+  private static File findEntry(File file, Set<File> entries) {
+    for (File parent = file; parent != null; parent = parent.getParentFile()) {
+      if (entries.contains(parent)) {
+        return parent;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * The parameters of an extraction.
+   */
+  public interface ExtractParameters extends WorkParameters {
+
+    Property<File> getSource();
+
+    Property<File> getDestination();
+
+    SetProperty<String> getIncludes();
+
+  }
+
+  /**
+   * Extract the resources of a classpath entry, the union of the include patterns of the
+   * transformers is used so the transformers select their resources after.
+   */
+  public abstract static class ExtractResources implements WorkAction<ExtractParameters> {
+
+    @Override
+    public void execute() {
+      try {
+        ResourceIndex.extract(getParameters().getSource().get(),
+            getParameters().getDestination().get(), getParameters().getIncludes().get());
+      } catch (IOException ex) {
+        throw new GradleException(ex.getMessage(), ex);
+      }
+    }
+
+  }
+
+}
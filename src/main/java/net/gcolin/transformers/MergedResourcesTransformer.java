@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package net.gcolin.transformers;
+
+import com.github.jengelman.gradle.plugins.shadow.relocation.Relocator;
+
+import net.gcolin.transformers.TransformerMetrics.Phase;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.zip.ZipOutputStream;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.FileTreeElement;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Transformer which writes the resources merged by a {@link MergeResourcesTask}. The resources of
+ * the dependencies handled by the transformers of the task are dropped. The merged resources are
+ * relocated with the relocators of shadow when they are copied, by the transformer of the task
+ * which handles them, so the jar is the same as without the task.
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+public class MergedResourcesTransformer extends PatternTransformer {
+
+  private final MergeResourcesTask task;
+  private List<Relocator> relocators = Collections.emptyList();
+
+  public MergedResourcesTransformer(MergeResourcesTask task) {
+    super(Collections.emptyList());
+    this.task = task;
+  }
+
+  @Override
+  public boolean canTransformResource(FileTreeElement element) {
+    for (PatternTransformer transformer : task.getTransformers()) {
+      if (transformer.canTransformResource(element)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public void transform(String path, InputStream is, List<Relocator> relocators) {
+    // replaced by the merged resource, relocated when it is copied
+    if (relocators != null) {
+      this.relocators = relocators;
+    }
+  }
+
+  @Override
+  public boolean hasTransformedResource() {
+    String[] files = task.getDestinationDir().list();
+    return files != null && files.length > 0;
+  }
+
+  @Override
+  public void modifyOutputStream(ZipOutputStream jos) {
+    List<String> paths = new ArrayList<>();
+    list(task.getDestinationDir(), "", paths);
+    try {
+      writeEntries(jos, paths, this::copy);
+    } catch (IOException ex) {
+      throw new GradleException(ex.getMessage(), ex);
+    }
+    writeReport();
+  }
+
+  private void copy(String path, OutputStream out) throws IOException {
+    File file = new File(task.getDestinationDir(), path);
+    getMetrics().resource(file.length());
+    PatternTransformer owner = getOwner(file, path);
+    TransformerMetrics.Timer timer = getMetrics().start(Phase.WRITE);
+    try {
+      if (owner == null || relocators.isEmpty()) {
+        try (InputStream in = new FileInputStream(file)) {
+          IOUtils.copy(in, out);
+        }
+      } else {
+        // with the relocate option of the transformer which merged the resource
+        out.write(owner.relocate(path, Files.readAllBytes(file.toPath()), relocators));
+      }
+    } finally {
+      timer.stop();
+    }
+  }
+
+  private PatternTransformer getOwner(File file, String path) {
+    FileTreeElement element = ResourceElement.create(file, path);
+    for (PatternTransformer transformer : task.getTransformers()) {
+      if (transformer.canTransformResource(element)) {
+        return transformer;
+      }
+    }
+    return null;
+  }
+
+  private static void list(File directory, String prefix, List<String> paths) {
+    File[] children = directory.listFiles();
+    if (children == null) {
+      return;
+    }
+    Arrays.sort(children);
+    for (File child : children) {
+      if (child.isDirectory()) {
+        list(child, prefix + child.getName() + '/', paths);
+      } else {
+        paths.add(prefix + child.getName());
+      }
+    }
+  }
+
+}
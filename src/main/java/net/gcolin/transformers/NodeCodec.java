@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.gcolin.transformers;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.ProcessingInstruction;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary form of parsed DOM nodes. Decoding creates the nodes directly, without parsing xml.
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+final class NodeCodec {
+
+  private static final int ELEMENT = 1;
+  private static final int TEXT = 2;
+  private static final int CDATA = 3;
+  private static final int COMMENT = 4;
+  private static final int PROCESSING_INSTRUCTION = 5;
+
+  private NodeCodec() {}
+
+  /**
+   * Write an element without its children.
+   *
+   * @param element an element
+   * @param out the output
+   * @throws IOException if an I/O error occurs
+   */
+  static void writeShallow(Element element, DataOutput out) throws IOException {
+    writeString(element.getNodeName(), out);
+    NamedNodeMap attributes = element.getAttributes();
+    out.writeInt(attributes.getLength());
+    for (int i = 0; i < attributes.getLength(); i++) {
+      Node attribute = attributes.item(i);
+      writeString(attribute.getNodeName(), out);
+      writeString(attribute.getNodeValue(), out);
+    }
+  }
+
+  /**
+   * Read an element without its children.
+   *
+   * @param document the owner of the element
+   * @param in the input
+   * @return the element
+   * @throws IOException if an I/O error occurs
+   */
+  static Element readShallow(Document document, DataInput in) throws IOException {
+    Element element = document.createElement(readString(in));
+    int nb = in.readInt();
+    for (int i = 0; i < nb; i++) {
+      element.setAttribute(readString(in), readString(in));
+    }
+    return element;
+  }
+
+  /**
+   * Write the children of a node.
+   *
+   * @param node a node
+   * @param out the output
+   * @throws IOException if an I/O error occurs
+   */
+  static void writeChildren(Node node, DataOutput out) throws IOException {
+    NodeList children = node.getChildNodes();
+    int nb = 0;
+    for (int i = 0; i < children.getLength(); i++) {
+      if (isSupported(children.item(i))) {
+        nb++;
+      }
+    }
+    out.writeInt(nb);
+    for (int i = 0; i < children.getLength(); i++) {
+      Node child = children.item(i);
+      switch (child.getNodeType()) {
+        case Node.ELEMENT_NODE:
+          out.writeByte(ELEMENT);
+          writeShallow((Element) child, out);
+          writeChildren(child, out);
+          break;
+        case Node.TEXT_NODE:
+          out.writeByte(TEXT);
+          writeString(child.getNodeValue(), out);
+          break;
+        case Node.CDATA_SECTION_NODE:
+          out.writeByte(CDATA);
+          writeString(child.getNodeValue(), out);
+          break;
+        case Node.COMMENT_NODE:
+          out.writeByte(COMMENT);
+          writeString(child.getNodeValue(), out);
+          break;
+        case Node.PROCESSING_INSTRUCTION_NODE:
+          out.writeByte(PROCESSING_INSTRUCTION);
+          writeString(((ProcessingInstruction) child).getTarget(), out);
+          writeString(((ProcessingInstruction) child).getData(), out);
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+  /**
+   * Read children and append them to a node.
+   *
+   * @param document the owner of the children
+   * @param parent the node receiving the children
+   * @param in the input
+   * @throws IOException if an I/O error occurs
+   */
+  static void readChildren(Document document, Node parent, DataInput in) throws IOException {
+    int nb = in.readInt();
+    for (int i = 0; i < nb; i++) {
+      int type = in.readByte();
+      switch (type) {
+        case ELEMENT:
+          Element element = readShallow(document, in);
+          readChildren(document, element, in);
+          parent.appendChild(element);
+          break;
+        case TEXT:
+          parent.appendChild(document.createTextNode(readString(in)));
+          break;
+        case CDATA:
+          parent.appendChild(document.createCDATASection(readString(in)));
+          break;
+        case COMMENT:
+          parent.appendChild(document.createComment(readString(in)));
+          break;
+        case PROCESSING_INSTRUCTION:
+          parent.appendChild(document.createProcessingInstruction(readString(in), readString(in)));
+          break;
+        default:
+          throw new IOException("unknown node type " + type);
+      }
+    }
+  }
+
+  private static boolean isSupported(Node node) {
+    switch (node.getNodeType()) {
+      case Node.ELEMENT_NODE:
+      case Node.TEXT_NODE:
+      case Node.CDATA_SECTION_NODE:
+      case Node.COMMENT_NODE:
+      case Node.PROCESSING_INSTRUCTION_NODE:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  static void writeString(String str, DataOutput out) throws IOException {
+    byte[] data = str.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(data.length);
+    out.write(data);
+  }
+
+  static String readString(DataInput in) throws IOException {
+    byte[] data = new byte[in.readInt()];
+    in.readFully(data);
+    return new String(data, StandardCharsets.UTF_8);
+  }
+
+}
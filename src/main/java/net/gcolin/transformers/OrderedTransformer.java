@@ -17,22 +17,23 @@ package net.gcolin.transformers;
 
 import com.github.jengelman.gradle.plugins.shadow.relocation.Relocator;
 
+import net.gcolin.transformers.TransformerMetrics.Phase;
+
 import org.apache.commons.io.IOUtils;
-import org.apache.tools.zip.ZipEntry;
 import org.apache.tools.zip.ZipOutputStream;
 import org.gradle.api.GradleException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.TreeMap;
 
 /**
  * Transformer that order files and merge them.
@@ -42,29 +43,63 @@ import java.util.Map.Entry;
  */
 public class OrderedTransformer extends PatternTransformer {
 
-  private final Map<String, List<List<String>>> files = new HashMap<>();
+  private static final byte[] NEW_LINE = {'\n'};
+
+  private final Map<String, List<OrderedFile>> files = new TreeMap<>();
+  private boolean raw;
 
   public OrderedTransformer(List<String> patterns) {
     super(patterns);
   }
 
+  /**
+   * Keep the files as bytes. Only the first line is decoded for ordering and the bytes are copied
+   * as is in the jar, so the line endings are not normalized.
+   *
+   * @param raw {@code true} for copying the bytes
+   */
+  public void setRaw(boolean raw) {
+    this.raw = raw;
+  }
+
+  @Override
+  protected void describe(Map<String, Object> settings) {
+    super.describe(settings);
+    settings.put("raw", raw);
+  }
+
   @Override
   public void transform(String path, InputStream is, List<Relocator> relocators) {
     try {
-      List<String> file = IOUtils.readLines(is, StandardCharsets.UTF_8);
-      if (!file.isEmpty()) {
-        List<List<String>> fileAll = files.get(path);
+      byte[] data = relocate(path, IOUtils.toByteArray(is), relocators);
+      if (data.length > 0) {
+        RetainedBytes retained = retain(path, data);
+        if (retained == null) {
+          return;
+        }
+        List<OrderedFile> fileAll = files.get(path);
         if (fileAll == null) {
           fileAll = new ArrayList<>();
           files.put(path, fileAll);
         }
-        fileAll.add(file);
+        fileAll.add(new OrderedFile(firstLine(data), retained));
       }
     } catch (IOException ex) {
       throw new GradleException(ex.getMessage(), ex);
     }
   }
 
+  private static String firstLine(byte[] data) {
+    int end = 0;
+    while (end < data.length && data[end] != '\n') {
+      end++;
+    }
+    if (end > 0 && data[end - 1] == '\r') {
+      end--;
+    }
+    return new String(data, 0, end, StandardCharsets.UTF_8);
+  }
+
   @Override
   public boolean hasTransformedResource() {
     return !files.isEmpty();
@@ -73,24 +108,77 @@ public class OrderedTransformer extends PatternTransformer {
   @Override
   public void modifyOutputStream(ZipOutputStream jos) {
     if (hasTransformedResource()) {
-      for (Entry<String, List<List<String>>> entry : files.entrySet()) {
-        Collections.sort(entry.getValue(), (a1, a2) -> a1.get(0).compareTo(a2.get(0)));
-        try {
-          jos.putNextEntry(new ZipEntry(entry.getKey()));
-          Writer writer = new OutputStreamWriter(jos, StandardCharsets.UTF_8);
-          for(List<String> file : entry.getValue()) {
-            for(String line :file) {
-              writer.write(line);
-              writer.write('\n');
-            }
+      try {
+        writeEntries(jos, new ArrayList<>(files.keySet()), this::render);
+      } catch (IOException ex) {
+        throw new GradleException(ex.getMessage(), ex);
+      } finally {
+        files.clear();
+        releaseRetained();
+      }
+      writeReport();
+    }
+  }
+
+  private void render(String path, OutputStream out) throws IOException {
+    List<OrderedFile> all = files.get(path);
+    TransformerMetrics.Timer timer = getMetrics().start(Phase.MERGE);
+    Collections.sort(all, (a1, a2) -> a1.key.compareTo(a2.key));
+    timer.stop();
+    timer = getMetrics().start(Phase.WRITE);
+    try {
+      if (raw) {
+        writeRaw(all, out);
+      } else {
+        writeLines(all, out);
+      }
+    } finally {
+      timer.stop();
+    }
+  }
+
+  private void writeLines(List<OrderedFile> all, OutputStream jos) throws IOException {
+    Writer writer = new OutputStreamWriter(jos, StandardCharsets.UTF_8);
+    for (OrderedFile file : all) {
+      try (InputStream in = file.data.openStream()) {
+        for (String line : IOUtils.readLines(in, StandardCharsets.UTF_8)) {
+          writer.write(line);
+          writer.write('\n');
+        }
+      }
+    }
+    writer.flush();
+  }
+
+  private void writeRaw(List<OrderedFile> all, OutputStream jos) throws IOException {
+    byte[] buffer = new byte[8192];
+    for (OrderedFile file : all) {
+      byte last = 0;
+      try (InputStream in = file.data.openStream()) {
+        int nb;
+        while ((nb = in.read(buffer)) != -1) {
+          if (nb > 0) {
+            jos.write(buffer, 0, nb);
+            last = buffer[nb - 1];
           }
-          writer.flush();
-          jos.closeEntry();
-        } catch (IOException ex) {
-          throw new GradleException(ex.getMessage(), ex);
         }
       }
+      if (last != '\n') {
+        jos.write(NEW_LINE, 0, 1);
+      }
+    }
+  }
+
+  private static class OrderedFile {
+
+    private final String key;
+    private final RetainedBytes data;
+
+    OrderedFile(String key, RetainedBytes data) {
+      this.key = key;
+      this.data = data;
     }
+
   }
 
 }
@@ -15,12 +15,44 @@
 
 package net.gcolin.transformers;
 
+import com.github.jengelman.gradle.plugins.shadow.relocation.Relocator;
 import com.github.jengelman.gradle.plugins.shadow.transformers.Transformer;
 
+import net.gcolin.transformers.TransformerMetrics.Phase;
+
+import org.apache.tools.zip.ZipEntry;
+import org.apache.tools.zip.ZipOutputStream;
+import org.gradle.api.GradleException;
 import org.gradle.api.file.FileTreeElement;
 import org.gradle.api.tasks.util.PatternSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 /**
  * Transformer with a pattern filter.
@@ -30,7 +62,36 @@ import java.util.List;
  */
 public abstract class PatternTransformer implements Transformer {
 
+  private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+  private static final ForkJoinPool EXECUTOR = new ForkJoinPool(PARALLELISM);
+  private static final int STORED = -2;
+  // the time of the entries of the reproducible archives of Gradle
+  private static final long REPRODUCIBLE_TIME =
+      new GregorianCalendar(1980, Calendar.FEBRUARY, 1, 0, 0, 0).getTimeInMillis();
+
+  private final Logger logger = LoggerFactory.getLogger(PatternTransformer.class);
   private final PatternSet patternSet = new PatternSet();
+  private CompiledPatterns patterns;
+  private long memoryBudget = Long.MAX_VALUE;
+  private File spillDirectory;
+  private ResourceArena arena;
+  private File cacheDirectory;
+  private long cacheMaxSize = 256L * 1024 * 1024;
+  private MergeCache cache;
+  private final TransformerMetrics metrics = new TransformerMetrics(getClass().getSimpleName());
+  private File reportFile;
+  private boolean deduplicate;
+  private boolean relocate = true;
+  private boolean reproducible;
+  private boolean parallel;
+  private final Map<String, Integer> compressions = new LinkedHashMap<>();
+  private final Map<String, String[]> compressionPatterns = new HashMap<>();
+  private int jarLevel = Deflater.DEFAULT_COMPRESSION;
+  private List<Relocator> compiledRelocators;
+  private RelocationMatcher relocation;
+  private final Map<String, Map<Long, List<RetainedBytes>>> retained = new HashMap<>();
+  private final Map<RetainedBytes, String> origins = new IdentityHashMap<>();
+  private String origin;
   
   public PatternTransformer(List<String> patterns) {
     patternSet.include(patterns);
@@ -38,11 +99,568 @@ public abstract class PatternTransformer implements Transformer {
   
   @Override
   public boolean canTransformResource(FileTreeElement element) {
-    return patternSet.getAsSpec().isSatisfiedBy(element);
+    CompiledPatterns compiled = patterns;
+    if (compiled == null) {
+      compiled = new CompiledPatterns(patternSet);
+      patterns = compiled;
+    }
+    return compiled.isSatisfiedBy(element);
   }
   
   public void exclude(String path) {
     patternSet.exclude(path);
+    patterns = null;
+  }
+
+  /**
+   * Work in parallel on the shared executor: the xml transformers parse the resources as soon as
+   * they are read, and the merged entries are rendered into buffers while the previous entries are
+   * written in the jar. The entries are still deflated one after the other by the jar stream. The
+   * parsed documents are kept until the jar is written, so the memory budget only applies to the
+   * bytes.
+   *
+   * @param parallel {@code true} for working in parallel
+   */
+  public void setParallel(boolean parallel) {
+    this.parallel = parallel;
+  }
+
+  public boolean isParallel() {
+    return parallel;
+  }
+
+  /**
+   * Get the include patterns.
+   *
+   * @return the patterns
+   */
+  Set<String> getIncludes() {
+    return patternSet.getIncludes();
+  }
+
+  /**
+   * Describe the options which change the merged resources. They are an input of
+   * {@link MergeResourcesTask}, so the merged resources are not reused after a change.
+   *
+   * @param settings the options by name
+   */
+  protected void describe(Map<String, Object> settings) {
+    settings.put("includes", new TreeSet<>(patternSet.getIncludes()));
+    settings.put("excludes", new TreeSet<>(patternSet.getExcludes()));
+    settings.put("deduplicate", deduplicate);
+    settings.put("reproducible", reproducible);
+    settings.put("compressions", compressions);
+  }
+
+  /**
+   * Tell why the description of the options does not identify the merged resources, for instance
+   * an option which is a closure of the build script. {@link MergeResourcesTask} is then never up
+   * to date and not cached.
+   *
+   * @return the reason or {@code null} if the description identifies the merged resources
+   */
+  protected String getUncacheableReason() {
+    return null;
+  }
+
+  /**
+   * Get the executor shared by the transformers for the work done in parallel. Its parallelism is
+   * the number of processors.
+   *
+   * @return the shared executor
+   */
+  protected Executor getExecutor() {
+    return EXECUTOR;
+  }
+
+  /**
+   * Get the pool of xml tools shared by the transformers.
+   *
+   * @return the shared pool
+   */
+  protected XmlPool getXmlPool() {
+    return XmlPool.shared();
+  }
+
+  /**
+   * Set the maximum number of bytes of the retained resources kept on the heap. The resources
+   * over the budget are written in a temporary file in the spill directory.
+   *
+   * @param memoryBudget a number of bytes
+   */
+  public void setMemoryBudget(long memoryBudget) {
+    this.memoryBudget = memoryBudget;
+  }
+
+  /**
+   * Set the directory of the temporary file used when the memory budget is exceeded, usually in
+   * the build directory. {@link MergeResourcesTask} uses its temporary directory if not set, a
+   * shadow transformer does not know the project and uses the default temporary directory.
+   *
+   * @param spillDirectory a directory
+   */
+  public void setSpillDirectory(File spillDirectory) {
+    this.spillDirectory = spillDirectory;
+  }
+
+  /**
+   * Set the spill directory if it is not set, like the temporary directory of a task.
+   *
+   * @param directory a directory
+   */
+  void setDefaultSpillDirectory(File directory) {
+    if (spillDirectory == null) {
+      spillDirectory = directory;
+    }
+  }
+
+  /**
+   * Relocate the class names and the paths in the resources with the relocators of shadow. Enabled
+   * by default.
+   *
+   * @param relocate {@code false} for keeping the resources as they are
+   */
+  public void setRelocate(boolean relocate) {
+    this.relocate = relocate;
+  }
+
+  /**
+   * Set the origin of the next resources, like the path of their jar, for the error messages. The
+   * shadow transformers do not know the jar of a resource, {@link MergeResourcesTask} does.
+   *
+   * @param origin the origin or {@code null}
+   */
+  void setOrigin(String origin) {
+    this.origin = origin;
+  }
+
+  /**
+   * Get the origin of retained bytes, see {@link #setOrigin(String)}.
+   *
+   * @param data the retained bytes
+   * @return the origin or {@code null} if it is unknown
+   */
+  protected String getOrigin(RetainedBytes data) {
+    return origins.get(data);
+  }
+
+  /**
+   * Write the entries with a fixed time, the same as Gradle with
+   * {@code preserveFileTimestamps = false}, so the same resources always give the same bytes. The
+   * entries and the names in the merged resources are always sorted.
+   *
+   * @param reproducible {@code true} for a fixed time
+   */
+  public void setReproducible(boolean reproducible) {
+    this.reproducible = reproducible;
+  }
+
+  public boolean isReproducible() {
+    return reproducible;
+  }
+
+  /**
+   * Wait for a task of the shared executor.
+   *
+   * @param future the future result
+   * @param <T> the type of the result
+   * @return the result
+   */
+  protected <T> T join(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException ex) {
+      if (ex.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) ex.getCause();
+      }
+      throw ex;
+    }
+  }
+
+  /**
+   * Write entries in the jar, in the order of the paths. In parallel mode, the entries are
+   * rendered into buffers on the shared executor, with their CRC and size, a few entries ahead of
+   * the entry written. The jar is only written by the calling thread, which deflates the entries.
+   *
+   * @param jos the jar
+   * @param paths the paths of the entries
+   * @param renderer the renderer of an entry
+   * @throws IOException if an I/O error occurs
+   */
+  protected void writeEntries(ZipOutputStream jos, List<String> paths, EntryRenderer renderer)
+      throws IOException {
+    if (!parallel || paths.size() < 2) {
+      for (String path : paths) {
+        Integer level = getCompression(path);
+        if (level != null && level == STORED) {
+          // the size and the CRC of a stored entry are written before its content
+          write(jos, render(path, renderer));
+          continue;
+        }
+        if (level != null) {
+          jos.setLevel(level);
+        }
+        try {
+          jos.putNextEntry(newEntry(path));
+          renderer.render(path, getMetrics().count(jos));
+          jos.closeEntry();
+        } finally {
+          if (level != null) {
+            jos.setLevel(jarLevel);
+          }
+        }
+      }
+      return;
+    }
+    Deque<CompletableFuture<RenderedEntry>> pending = new ArrayDeque<>();
+    Iterator<String> it = paths.iterator();
+    while (it.hasNext() || !pending.isEmpty()) {
+      while (it.hasNext() && pending.size() < PARALLELISM * 2) {
+        String path = it.next();
+        pending.add(CompletableFuture.supplyAsync(() -> render(path, renderer), EXECUTOR));
+      }
+      write(jos, join(pending.poll()));
+    }
+  }
+
+  private void write(ZipOutputStream jos, RenderedEntry rendered) throws IOException {
+    TransformerMetrics.Timer timer = metrics.start(Phase.WRITE);
+    try {
+      ZipEntry entry = newEntry(rendered.path);
+      entry.setSize(rendered.size());
+      entry.setCrc(rendered.crc);
+      Integer level = getCompression(rendered.path);
+      boolean deflated = level != null && level != STORED;
+      if (level != null && level == STORED) {
+        entry.setMethod(ZipEntry.STORED);
+        entry.setCompressedSize(rendered.size());
+      }
+      if (deflated) {
+        jos.setLevel(level);
+      }
+      try {
+        jos.putNextEntry(entry);
+        rendered.writeTo(metrics.count(jos));
+        jos.closeEntry();
+      } finally {
+        if (deflated) {
+          jos.setLevel(jarLevel);
+        }
+      }
+    } finally {
+      timer.stop();
+    }
+  }
+
+  private static RenderedEntry render(String path, EntryRenderer renderer) {
+    RenderedEntry rendered = new RenderedEntry(path);
+    try {
+      renderer.render(path, rendered);
+    } catch (IOException ex) {
+      throw new GradleException(ex.getMessage(), ex);
+    }
+    rendered.checksum();
+    return rendered;
+  }
+
+  /**
+   * Store the merged entries matching a pattern without compression. The entries are read faster,
+   * for instance the descriptors read when an application starts. The first matching pattern of
+   * {@link #store(String)} and {@link #compress(String, int)} applies.
+   *
+   * @param pattern an Ant pattern of the paths of the merged entries
+   */
+  public void store(String pattern) {
+    addCompression(pattern, STORED);
+  }
+
+  /**
+   * Compress the merged entries matching a pattern with a deflate level, for instance
+   * {@link Deflater#BEST_SPEED} for large merged files. The other entries use the level of the jar.
+   * The first matching pattern of {@link #store(String)} and {@link #compress(String, int)}
+   * applies.
+   *
+   * @param pattern an Ant pattern of the paths of the merged entries
+   * @param level a level from 0 to 9 or {@link Deflater#DEFAULT_COMPRESSION}
+   */
+  public void compress(String pattern, int level) {
+    if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) {
+      throw new IllegalArgumentException("invalid compression level " + level);
+    }
+    addCompression(pattern, level);
+  }
+
+  private void addCompression(String pattern, int level) {
+    compressions.putIfAbsent(pattern, level);
+    compressionPatterns.put(pattern, CompiledPatterns.tokenize(pattern));
+  }
+
+  /**
+   * Set the compression level of the jar, restored after each entry written with
+   * {@link #store(String)} or {@link #compress(String, int)}. Shadow does not change the level of
+   * the jar, so the default is {@link Deflater#DEFAULT_COMPRESSION}.
+   *
+   * @param jarLevel a level from 0 to 9 or {@link Deflater#DEFAULT_COMPRESSION}
+   */
+  public void setJarLevel(int jarLevel) {
+    if ((jarLevel < 0 || jarLevel > 9) && jarLevel != Deflater.DEFAULT_COMPRESSION) {
+      throw new IllegalArgumentException("invalid compression level " + jarLevel);
+    }
+    this.jarLevel = jarLevel;
+  }
+
+  /**
+   * Get the compression of a merged entry.
+   *
+   * @param path the path of the entry
+   * @return {@link #STORED}, a deflate level or {@code null} for the level of the jar
+   */
+  private Integer getCompression(String path) {
+    if (compressions.isEmpty()) {
+      return null;
+    }
+    String[] segments = CompiledPatterns.tokenize(path);
+    for (Map.Entry<String, Integer> compression : compressions.entrySet()) {
+      if (CompiledPatterns.matches(compressionPatterns.get(compression.getKey()), segments)) {
+        return compression.getValue();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Create an entry of the jar, with a fixed time in reproducible mode.
+   *
+   * @param name the path of the entry
+   * @return the entry
+   */
+  protected ZipEntry newEntry(String name) {
+    ZipEntry entry = new ZipEntry(name);
+    if (reproducible) {
+      entry.setTime(REPRODUCIBLE_TIME);
+    }
+    return entry;
+  }
+
+  /**
+   * Drop the resources with the same bytes as a previous resource of the same path, before they
+   * are parsed. The resources are compared with a CRC32 then byte per byte. The dropped resources
+   * are logged at debug level.
+   *
+   * @param deduplicate {@code true} for dropping the duplicates
+   */
+  public void setDeduplicate(boolean deduplicate) {
+    this.deduplicate = deduplicate;
+  }
+
+  /**
+   * Set the directory of a cache which keeps the data extracted from each resource between two
+   * builds, usually in the build directory. The resources with the same content are not parsed
+   * again. No cache is used if not set.
+   *
+   * @param cacheDirectory a directory
+   */
+  public void setCacheDirectory(File cacheDirectory) {
+    this.cacheDirectory = cacheDirectory;
+    this.cache = cacheDirectory == null ? null : new MergeCache(cacheDirectory, cacheMaxSize);
+  }
+
+  /**
+   * Set the maximum number of bytes of the cache. The least recently used entries are deleted
+   * when it is exceeded. 256 MiB by default.
+   *
+   * @param cacheMaxSize a number of bytes
+   */
+  public void setCacheMaxSize(long cacheMaxSize) {
+    this.cacheMaxSize = cacheMaxSize;
+    setCacheDirectory(cacheDirectory);
+  }
+
+  /**
+   * Get the cache of the data extracted from the resources.
+   *
+   * @return the cache or {@code null} if not configured
+   */
+  MergeCache getCache() {
+    return cache;
+  }
+
+  /**
+   * Get the metrics of this transformer.
+   *
+   * @return the metrics
+   */
+  public TransformerMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Set the file of the JSON metrics report, usually in the build directory. The report is written
+   * after the jar. No report is written if not set.
+   *
+   * @param reportFile a file
+   */
+  public void setReportFile(File reportFile) {
+    this.reportFile = reportFile;
+  }
+
+  /**
+   * Write the metrics report if configured. Called after the jar is written.
+   */
+  protected void writeReport() {
+    logger.debug("{}", metrics);
+    if (reportFile != null) {
+      metrics.write(reportFile);
+    }
+  }
+
+  /**
+   * Apply the relocations of shadow to the bytes of a resource. In xml, only the text and the
+   * attribute values are relocated.
+   *
+   * @param path the path of the resource
+   * @param data the bytes of the resource
+   * @param relocators the relocators given to {@link #transform(String, InputStream, List)}
+   * @return the relocated bytes, or the same array if nothing is relocated
+   */
+  protected byte[] relocate(String path, byte[] data, List<Relocator> relocators) {
+    if (!relocate || relocators == null || relocators.isEmpty()) {
+      return data;
+    }
+    return getRelocation(relocators).relocate(data, path.endsWith(".xml"));
+  }
+
+  // the merged resources may be relocated while the entries are rendered in parallel
+  private synchronized RelocationMatcher getRelocation(List<Relocator> relocators) {
+    if (relocators != compiledRelocators) {
+      relocation = new RelocationMatcher(new ArrayList<>(relocators));
+      compiledRelocators = relocators;
+    }
+    return relocation;
+  }
+
+  /**
+   * Keep the bytes of a resource until the jar is written.
+   *
+   * @param data the bytes of a resource
+   * @return the retained bytes
+   */
+  protected RetainedBytes retain(byte[] data) {
+    metrics.resource(data.length);
+    return store(data);
+  }
+
+  /**
+   * Keep the bytes of a resource until the jar is written, unless deduplication is enabled and the
+   * same bytes were already retained for the same path.
+   *
+   * @param path the path of the resource
+   * @param data the bytes of the resource
+   * @return the retained bytes or {@code null} for a duplicate
+   */
+  protected RetainedBytes retain(String path, byte[] data) {
+    metrics.resource(data.length);
+    if (!deduplicate) {
+      return store(data);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    Map<Long, List<RetainedBytes>> byCrc = retained.get(path);
+    if (byCrc == null) {
+      byCrc = new HashMap<>();
+      retained.put(path, byCrc);
+    }
+    List<RetainedBytes> candidates = byCrc.get(crc.getValue());
+    if (candidates == null) {
+      candidates = new ArrayList<>(1);
+      byCrc.put(crc.getValue(), candidates);
+    }
+    try {
+      for (RetainedBytes candidate : candidates) {
+        if (candidate.size() == data.length && Arrays.equals(candidate.toByteArray(), data)) {
+          logger.debug("drop duplicate {} of {} bytes", path, data.length);
+          metrics.duplicate();
+          return null;
+        }
+      }
+    } catch (IOException ex) {
+      throw new GradleException(ex.getMessage(), ex);
+    }
+    RetainedBytes bytes = store(data);
+    candidates.add(bytes);
+    return bytes;
+  }
+
+  private RetainedBytes store(byte[] data) {
+    if (arena == null) {
+      arena = new ResourceArena(memoryBudget, spillDirectory);
+    }
+    try {
+      RetainedBytes bytes = arena.retain(data);
+      metrics.retained(arena.getHeapBytes(), arena.getSpilledBytes());
+      if (origin != null) {
+        origins.put(bytes, origin);
+      }
+      return bytes;
+    } catch (IOException ex) {
+      throw new GradleException(ex.getMessage(), ex);
+    }
+  }
+
+  /**
+   * Release the retained resources and delete the temporary file. Called after the jar is
+   * written.
+   */
+  protected void releaseRetained() {
+    retained.clear();
+    origins.clear();
+    if (arena != null) {
+      try {
+        arena.close();
+      } catch (IOException ex) {
+        throw new GradleException(ex.getMessage(), ex);
+      } finally {
+        arena = null;
+      }
+    }
   }
   
+  /**
+   * Write the content of an entry.
+   */
+  @FunctionalInterface
+  protected interface EntryRenderer {
+
+    /**
+     * Write the content of an entry. In parallel mode, several entries are rendered at the same
+     * time.
+     *
+     * @param path the path of the entry
+     * @param out the output
+     * @throws IOException if an I/O error occurs
+     */
+    void render(String path, OutputStream out) throws IOException;
+
+  }
+
+  /**
+   * An entry rendered in memory.
+   */
+  private static class RenderedEntry extends ByteArrayOutputStream {
+
+    private final String path;
+    private long crc;
+
+    RenderedEntry(String path) {
+      this.path = path;
+    }
+
+    void checksum() {
+      CRC32 checksum = new CRC32();
+      checksum.update(buf, 0, count);
+      crc = checksum.getValue();
+    }
+
+  }
+
 }
@@ -0,0 +1,424 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.gcolin.transformers;
+
+import com.github.jengelman.gradle.plugins.shadow.relocation.Relocator;
+
+import groovy.lang.GroovyObject;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Relocate the class names and the paths found in a resource.
+ *
+ * <p>
+ * The patterns of all the relocators are compiled in one Aho-Corasick automaton over the UTF-8
+ * bytes, so a resource is scanned once whatever the number of relocators. A match at the start of a
+ * name gives the relocators which may apply, they are tried in the order of the list like shadow
+ * does. The relocators which do not expose their pattern are tried on every name.
+ * </p>
+ *
+ * <p>
+ * In xml, only the text, the CDATA sections and the attribute values are relocated.
+ * </p>
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+final class RelocationMatcher {
+
+  private final List<Relocator> relocators;
+  /**
+   * The relocators without pattern.
+   */
+  private final int[] fallback;
+  private final List<State> states = new ArrayList<>();
+  private final List<Integer> patternRelocators = new ArrayList<>();
+  private final List<Integer> patternLengths = new ArrayList<>();
+
+  RelocationMatcher(List<Relocator> relocators) {
+    this.relocators = relocators;
+    states.add(new State());
+    List<Integer> withoutPattern = new ArrayList<>();
+    for (int i = 0; i < relocators.size(); i++) {
+      Relocator relocator = relocators.get(i);
+      String pattern = property(relocator, "pattern");
+      String pathPattern = property(relocator, "pathPattern");
+      if (pattern == null || pathPattern == null || pattern.isEmpty()
+          || Boolean.TRUE.equals(propertyValue(relocator, "rawString"))) {
+        withoutPattern.add(i);
+      } else {
+        add(pattern, i);
+        add(pathPattern, i);
+      }
+    }
+    fallback = new int[withoutPattern.size()];
+    for (int i = 0; i < fallback.length; i++) {
+      fallback[i] = withoutPattern.get(i);
+    }
+    link();
+  }
+
+  boolean isEmpty() {
+    return relocators.isEmpty();
+  }
+
+  private static String property(Relocator relocator, String name) {
+    Object value = propertyValue(relocator, name);
+    return value instanceof String ? (String) value : null;
+  }
+
+  private static Object propertyValue(Relocator relocator, String name) {
+    if (relocator instanceof GroovyObject) {
+      try {
+        return ((GroovyObject) relocator).getProperty(name);
+      } catch (RuntimeException ex) {
+        return null;
+      }
+    }
+    return null;
+  }
+
+  private void add(String pattern, int relocator) {
+    byte[] bytes = pattern.getBytes(StandardCharsets.UTF_8);
+    int state = 0;
+    for (byte ch : bytes) {
+      int next = states.get(state).get(ch);
+      if (next == -1) {
+        next = states.size();
+        states.add(new State());
+        states.get(state).put(ch, next);
+      }
+      state = next;
+    }
+    states.get(state).patterns.add(patternRelocators.size());
+    patternRelocators.add(relocator);
+    patternLengths.add(bytes.length);
+  }
+
+  /**
+   * Compute the failure links and the links to the next state with patterns, breadth first.
+   */
+  private void link() {
+    int[] queue = new int[states.size()];
+    int head = 0;
+    int tail = 0;
+    State root = states.get(0);
+    for (int i = 0; i < root.size; i++) {
+      states.get(root.targets[i]).fail = 0;
+      queue[tail++] = root.targets[i];
+    }
+    while (head < tail) {
+      int current = queue[head++];
+      State state = states.get(current);
+      State fail = states.get(state.fail);
+      state.output = fail.patterns.isEmpty() ? fail.output : state.fail;
+      for (int i = 0; i < state.size; i++) {
+        int child = state.targets[i];
+        int target = state.fail;
+        while (target != 0 && states.get(target).get(state.keys[i]) == -1) {
+          target = states.get(target).fail;
+        }
+        int next = states.get(target).get(state.keys[i]);
+        states.get(child).fail = next == -1 || next == child ? 0 : next;
+        queue[tail++] = child;
+      }
+    }
+  }
+
+  /**
+   * Relocate a resource.
+   *
+   * @param data the bytes of the resource
+   * @param xml {@code true} for relocating only the text and the attribute values
+   * @return the relocated bytes, or the same array if nothing is relocated
+   */
+  byte[] relocate(byte[] data, boolean xml) {
+    Output out = new Output(data);
+    if (xml) {
+      relocateXml(data, out);
+    } else {
+      scan(data, 0, data.length, out);
+    }
+    return out.toByteArray();
+  }
+
+  private void relocateXml(byte[] data, Output out) {
+    int pos = 0;
+    while (pos < data.length) {
+      if (data[pos] != '<') {
+        int end = indexOf(data, pos, "<");
+        scan(data, pos, end, out);
+        pos = end;
+      } else if (startsWith(data, pos, "<!--")) {
+        pos = after(data, pos, "-->");
+      } else if (startsWith(data, pos, "<![CDATA[")) {
+        int start = pos + 9;
+        int end = indexOf(data, start, "]]>");
+        scan(data, start, end, out);
+        pos = after(data, start, "]]>");
+      } else if (startsWith(data, pos, "<?") || startsWith(data, pos, "<!")) {
+        pos = after(data, pos, ">");
+      } else {
+        pos = tag(data, pos, out);
+      }
+    }
+  }
+
+  /**
+   * Relocate the attribute values of a tag.
+   *
+   * @return the position after the tag
+   */
+  private int tag(byte[] data, int pos, Output out) {
+    while (pos < data.length && data[pos] != '>') {
+      byte ch = data[pos];
+      if (ch == '"' || ch == '\'') {
+        int end = pos + 1;
+        while (end < data.length && data[end] != ch) {
+          end++;
+        }
+        scan(data, pos + 1, end, out);
+        pos = end;
+      }
+      pos++;
+    }
+    return pos + 1;
+  }
+
+  private void scan(byte[] data, int from, int to, Output out) {
+    if (fallback.length > 0) {
+      for (int i = from; i < to; i++) {
+        if (isNameStart(data, i, from)) {
+          relocateAt(data, i, to, out);
+          while (i + 1 < to && isNameChar(data[i + 1])) {
+            i++;
+          }
+        }
+      }
+      return;
+    }
+    int state = 0;
+    for (int i = from; i < to; i++) {
+      state = next(state, data[i]);
+      int matched = states.get(state).patterns.isEmpty() ? states.get(state).output : state;
+      while (matched > 0) {
+        for (int pattern : states.get(matched).patterns) {
+          int start = i - patternLengths.get(pattern) + 1;
+          if (start >= from && isNameStart(data, start, from)) {
+            int end = relocateAt(data, start, to, out);
+            if (end > start) {
+              i = end - 1;
+              state = 0;
+              matched = 0;
+              break;
+            }
+          }
+        }
+        if (matched > 0) {
+          matched = states.get(matched).output;
+        }
+      }
+    }
+  }
+
+  /**
+   * Try to relocate the name starting at a position.
+   *
+   * @return the end of the relocated name, or the start if nothing is relocated
+   */
+  private int relocateAt(byte[] data, int start, int to, Output out) {
+    int end = start;
+    while (end < to && isNameChar(data[end])) {
+      end++;
+    }
+    while (end > start && (data[end - 1] == '.' || data[end - 1] == '/')) {
+      end--;
+    }
+    if (end == start) {
+      return start;
+    }
+    String name = null;
+    for (int index : candidates(data, start, end)) {
+      if (name == null) {
+        name = new String(data, start, end - start, StandardCharsets.UTF_8);
+      }
+      Relocator relocator = relocators.get(index);
+      String relocated = null;
+      if (name.indexOf('/') >= 0) {
+        if (relocator.canRelocatePath(name)) {
+          relocated = relocator.relocatePath(name);
+        }
+      } else if (relocator.canRelocateClass(name)) {
+        relocated = relocator.relocateClass(name);
+      }
+      if (relocated != null) {
+        if (!relocated.equals(name)) {
+          out.replace(start, end, relocated.getBytes(StandardCharsets.UTF_8));
+        }
+        return end;
+      }
+    }
+    return start;
+  }
+
+  /**
+   * Get the relocators with a pattern which is a prefix of a name, by walking the trie, and the
+   * relocators without pattern, in the order of the list.
+   */
+  private int[] candidates(byte[] data, int start, int end) {
+    int[] candidates = new int[fallback.length + 4];
+    int size = 0;
+    for (int index : fallback) {
+      candidates[size++] = index;
+    }
+    int state = 0;
+    for (int i = start; i < end; i++) {
+      state = states.get(state).get(data[i]);
+      if (state == -1) {
+        break;
+      }
+      for (int pattern : states.get(state).patterns) {
+        if (size == candidates.length) {
+          candidates = Arrays.copyOf(candidates, size * 2);
+        }
+        candidates[size++] = patternRelocators.get(pattern);
+      }
+    }
+    candidates = Arrays.copyOf(candidates, size);
+    Arrays.sort(candidates);
+    return candidates;
+  }
+
+  private int next(int state, byte ch) {
+    while (true) {
+      int next = states.get(state).get(ch);
+      if (next != -1) {
+        return next;
+      }
+      if (state == 0) {
+        return 0;
+      }
+      state = states.get(state).fail;
+    }
+  }
+
+  private static boolean isNameStart(byte[] data, int pos, int from) {
+    return isNameChar(data[pos]) && (pos == from || !isNameChar(data[pos - 1]));
+  }
+
+  private static boolean isNameChar(byte ch) {
+    return ch >= 'a' && ch <= 'z' || ch >= 'A' && ch <= 'Z' || ch >= '0' && ch <= '9'
+        || ch == '_' || ch == '$' || ch == '.' || ch == '/' || ch == '-';
+  }
+
+  private static boolean startsWith(byte[] data, int pos, String prefix) {
+    if (pos + prefix.length() > data.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length(); i++) {
+      if (data[pos + i] != prefix.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int indexOf(byte[] data, int from, String str) {
+    for (int i = from; i < data.length; i++) {
+      if (startsWith(data, i, str)) {
+        return i;
+      }
+    }
+    return data.length;
+  }
+
+  private static int after(byte[] data, int from, String str) {
+    return Math.min(data.length, indexOf(data, from, str) + str.length());
+  }
+
+  /**
+   * A state of the automaton with its sorted transitions.
+   */
+  private static class State {
+
+    private byte[] keys = new byte[2];
+    private int[] targets = new int[2];
+    private int size;
+    private int fail;
+    /**
+     * The next state on the failure path with patterns.
+     */
+    private int output;
+    private final List<Integer> patterns = new ArrayList<>(1);
+
+    int get(byte key) {
+      int index = Arrays.binarySearch(keys, 0, size, key);
+      return index < 0 ? -1 : targets[index];
+    }
+
+    void put(byte key, int target) {
+      int index = -Arrays.binarySearch(keys, 0, size, key) - 1;
+      if (size == keys.length) {
+        keys = Arrays.copyOf(keys, size * 2);
+        targets = Arrays.copyOf(targets, size * 2);
+      }
+      System.arraycopy(keys, index, keys, index + 1, size - index);
+      System.arraycopy(targets, index, targets, index + 1, size - index);
+      keys[index] = key;
+      targets[index] = target;
+      size++;
+    }
+
+  }
+
+  /**
+   * The relocated bytes, copied only after the first replacement.
+   */
+  private static class Output {
+
+    private final byte[] data;
+    private ByteArrayOutputStream out;
+    private int copied;
+
+    Output(byte[] data) {
+      this.data = data;
+    }
+
+    void replace(int start, int end, byte[] replacement) {
+      if (out == null) {
+        out = new ByteArrayOutputStream(data.length + 64);
+      }
+      out.write(data, copied, start - copied);
+      out.write(replacement, 0, replacement.length);
+      copied = end;
+    }
+
+    byte[] toByteArray() {
+      if (out == null) {
+        return data;
+      }
+      out.write(data, copied, data.length - copied);
+      return out.toByteArray();
+    }
+
+  }
+
+}
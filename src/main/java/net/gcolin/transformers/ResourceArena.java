@@ -0,0 +1,218 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.gcolin.transformers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Store the retained resources on the heap until a memory budget is exceeded, then in a temporary
+ * file. A spilled resource is read back with positional reads of the file channel, so nothing is
+ * mapped and the file can be deleted as soon as the arena is closed.
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+final class ResourceArena implements Closeable {
+
+  private final Logger logger = LoggerFactory.getLogger(ResourceArena.class);
+  private final long budget;
+  private final File directory;
+  private long heapBytes;
+  private long spilledBytes;
+  private File file;
+  private FileChannel channel;
+
+  /**
+   * Create an arena.
+   *
+   * @param budget the maximum number of bytes kept on the heap
+   * @param directory the directory of the temporary file or {@code null} for the default
+   *        temporary directory
+   */
+  ResourceArena(long budget, File directory) {
+    this.budget = budget;
+    this.directory = directory;
+  }
+
+  synchronized RetainedBytes retain(byte[] data) throws IOException {
+    if (heapBytes + data.length <= budget) {
+      heapBytes += data.length;
+      return new HeapBytes(data);
+    }
+    if (channel == null) {
+      if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("cannot create " + directory);
+      }
+      file = File.createTempFile("transformer", ".arena", directory);
+      channel = new RandomAccessFile(file, "rw").getChannel();
+      logger.info("memory budget of {} bytes exceeded, spill to {}", budget, file);
+    }
+    long offset = spilledBytes;
+    ByteBuffer buffer = ByteBuffer.wrap(data);
+    while (buffer.hasRemaining()) {
+      channel.write(buffer, offset + buffer.position());
+    }
+    spilledBytes += data.length;
+    return new SpilledBytes(channel, offset, data.length);
+  }
+
+  synchronized long getHeapBytes() {
+    return heapBytes;
+  }
+
+  synchronized long getSpilledBytes() {
+    return spilledBytes;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    heapBytes = 0;
+    spilledBytes = 0;
+    if (channel != null) {
+      channel.close();
+      channel = null;
+      if (!file.delete()) {
+        logger.warn("cannot delete {}", file);
+      }
+      file = null;
+    }
+  }
+
+  private static class HeapBytes implements RetainedBytes {
+
+    private final byte[] data;
+
+    HeapBytes(byte[] data) {
+      this.data = data;
+    }
+
+    @Override
+    public int size() {
+      return data.length;
+    }
+
+    @Override
+    public InputStream openStream() {
+      return new ByteArrayInputStream(data);
+    }
+
+    @Override
+    public byte[] toByteArray() {
+      return data;
+    }
+
+  }
+
+  private static class SpilledBytes implements RetainedBytes {
+
+    private final FileChannel channel;
+    private final long offset;
+    private final int size;
+
+    SpilledBytes(FileChannel channel, long offset, int size) {
+      this.channel = channel;
+      this.offset = offset;
+      this.size = size;
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public InputStream openStream() {
+      return new ChannelInputStream(channel, offset, size);
+    }
+
+    @Override
+    public byte[] toByteArray() throws IOException {
+      byte[] data = new byte[size];
+      ByteBuffer buffer = ByteBuffer.wrap(data);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, offset + buffer.position()) < 0) {
+          throw new EOFException("the spill file is truncated");
+        }
+      }
+      return data;
+    }
+
+  }
+
+  /**
+   * Read a region of a file channel with positional reads, the channel is shared by the threads.
+   */
+  private static class ChannelInputStream extends InputStream {
+
+    private final FileChannel channel;
+    private final long end;
+    private long position;
+
+    ChannelInputStream(FileChannel channel, long offset, int size) {
+      this.channel = channel;
+      this.position = offset;
+      this.end = offset + size;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] one = new byte[1];
+      return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (position >= end) {
+        return -1;
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(bytes, off, (int) Math.min(len, end - position));
+      int nb = channel.read(buffer, position);
+      if (nb < 0) {
+        throw new EOFException("the spill file is truncated");
+      }
+      position += nb;
+      return nb;
+    }
+
+    @Override
+    public long skip(long n) {
+      long nb = Math.max(0, Math.min(n, end - position));
+      position += nb;
+      return nb;
+    }
+
+    @Override
+    public int available() {
+      return (int) (end - position);
+    }
+
+  }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package net.gcolin.transformers;
+
+import org.gradle.api.file.FileTreeElement;
+import org.gradle.api.file.RelativePath;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * A resource given to the transformers outside of shadow, in a directory or in a jar.
+ *
+ * <p>
+ * The element is a proxy because the methods of {@link FileTreeElement} change with the versions
+ * of Gradle. The transformers only need the path of the resource.
+ * </p>
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+final class ResourceElement implements InvocationHandler {
+
+  private final File file;
+  private final String path;
+
+  private ResourceElement(File file, String path) {
+    this.file = file;
+    this.path = path;
+  }
+
+  /**
+   * Create a resource.
+   *
+   * @param file the file of the resource or {@code null} if the resource is in a jar
+   * @param path the path of the resource, with slashes
+   * @return the resource
+   */
+  static FileTreeElement create(File file, String path) {
+    return (FileTreeElement) Proxy.newProxyInstance(FileTreeElement.class.getClassLoader(),
+        new Class<?>[] {FileTreeElement.class}, new ResourceElement(file, path));
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    switch (method.getName()) {
+      case "getPath":
+        return path;
+      case "getName":
+        return path.substring(path.lastIndexOf('/') + 1);
+      case "getRelativePath":
+        return RelativePath.parse(true, path);
+      case "isDirectory":
+        return false;
+      case "getFile":
+        return file;
+      case "getSize":
+        return file == null ? 0L : file.length();
+      case "getLastModified":
+        return file == null ? 0L : file.lastModified();
+      case "open":
+        if (file != null) {
+          return new FileInputStream(file);
+        }
+        break;
+      case "toString":
+        return path;
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      case "equals":
+        return proxy == args[0];
+      default:
+        break;
+    }
+    throw new UnsupportedOperationException(method.getName() + " on " + path);
+  }
+
+}
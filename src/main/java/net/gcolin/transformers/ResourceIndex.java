@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package net.gcolin.transformers;
+
+import org.apache.commons.io.IOUtils;
+import org.gradle.api.tasks.util.PatternSet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The resources of a classpath entry extracted in a directory, with an index of their paths in the
+ * order of the classpath entry.
+ *
+ * <p>
+ * The index is written last, so a directory without index is extracted again.
+ * </p>
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+final class ResourceIndex {
+
+  private static final String INDEX = "index";
+  private static final String FILES = "files";
+
+  private ResourceIndex() {}
+
+  /**
+   * Extract the resources of a jar or a directory.
+   *
+   * @param source a jar or a directory, a missing file has no resources
+   * @param target the directory of the extracted resources, deleted first
+   * @param includes the patterns of the resources to extract
+   * @throws IOException if an I/O error occurs
+   */
+  static void extract(File source, File target, Set<String> includes) throws IOException {
+    delete(target);
+    if (!target.mkdirs()) {
+      throw new IOException("cannot create " + target);
+    }
+    PatternSet patternSet = new PatternSet();
+    patternSet.include(includes);
+    CompiledPatterns patterns = new CompiledPatterns(patternSet);
+    List<String> paths = new ArrayList<>();
+    if (source.isDirectory()) {
+      extractDirectory(source, "", target, patterns, paths);
+    } else if (source.isFile()) {
+      try (ZipFile zip = new ZipFile(source)) {
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+          ZipEntry entry = entries.nextElement();
+          String path = entry.getName();
+          if (!entry.isDirectory() && isSafe(path)
+              && patterns.isSatisfiedBy(ResourceElement.create(null, path))) {
+            try (InputStream in = zip.getInputStream(entry)) {
+              copy(in, file(target, path));
+            }
+            paths.add(path);
+          }
+        }
+      }
+    }
+    File tmp = new File(target, INDEX + ".tmp");
+    Files.write(tmp.toPath(), paths, StandardCharsets.UTF_8);
+    Files.move(tmp.toPath(), new File(target, INDEX).toPath(),
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static void extractDirectory(File directory, String prefix, File target,
+      CompiledPatterns patterns, List<String> paths) throws IOException {
+    File[] children = directory.listFiles();
+    if (children == null) {
+      throw new IOException("cannot list " + directory);
+    }
+    Arrays.sort(children);
+    for (File child : children) {
+      String path = prefix + child.getName();
+      if (child.isDirectory()) {
+        extractDirectory(child, path + '/', target, patterns, paths);
+      } else if (patterns.isSatisfiedBy(ResourceElement.create(child, path))) {
+        Files.copy(child.toPath(), mkdirs(file(target, path)).toPath(),
+            StandardCopyOption.REPLACE_EXISTING);
+        paths.add(path);
+      }
+    }
+  }
+
+  /**
+   * Read the paths of the extracted resources.
+   *
+   * @param target the directory of the extracted resources
+   * @return the paths or an empty list if the resources are not extracted
+   * @throws IOException if an I/O error occurs
+   */
+  static List<String> read(File target) throws IOException {
+    File index = new File(target, INDEX);
+    if (!index.isFile()) {
+      return Collections.emptyList();
+    }
+    return Files.readAllLines(index.toPath(), StandardCharsets.UTF_8);
+  }
+
+  static boolean exists(File target) {
+    return new File(target, INDEX).isFile();
+  }
+
+  /**
+   * Get the file of an extracted resource.
+   *
+   * @param target the directory of the extracted resources
+   * @param path the path of the resource
+   * @return the file
+   */
+  static File file(File target, String path) {
+    return new File(new File(target, FILES), path);
+  }
+
+  /**
+   * Check that a path stays in the directory it is extracted to.
+   *
+   * @param path the path of an entry
+   * @return {@code true} if the path has no parent segment and is relative
+   */
+  static boolean isSafe(String path) {
+    if (path.startsWith("/") || path.contains("\\")) {
+      return false;
+    }
+    for (String segment : path.split("/")) {
+      if (segment.equals("..")) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Delete a file or a directory with its content.
+   *
+   * @param file a file or a directory
+   * @throws IOException if the file cannot be deleted
+   */
+  static void delete(File file) throws IOException {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    if (file.exists() && !file.delete()) {
+      throw new IOException("cannot delete " + file);
+    }
+  }
+
+  static File mkdirs(File file) throws IOException {
+    File parent = file.getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("cannot create " + parent);
+    }
+    return file;
+  }
+
+  private static void copy(InputStream in, File file) throws IOException {
+    try (OutputStream out = new FileOutputStream(mkdirs(file))) {
+      IOUtils.copy(in, out);
+    }
+  }
+
+}
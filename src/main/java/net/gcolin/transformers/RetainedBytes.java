@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.gcolin.transformers;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The bytes of a resource kept until the jar is written, on the heap or in a temporary file.
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+public interface RetainedBytes {
+
+  /**
+   * Get the number of bytes.
+   *
+   * @return the number of bytes
+   */
+  int size();
+
+  /**
+   * Read the bytes.
+   *
+   * @return a new stream
+   * @throws IOException if the bytes cannot be read
+   */
+  InputStream openStream() throws IOException;
+
+  /**
+   * Copy the bytes in an array.
+   *
+   * @return the bytes
+   * @throws IOException if the bytes cannot be read
+   */
+  byte[] toByteArray() throws IOException;
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.gcolin.transformers;
+
+import org.gradle.api.GradleException;
+import org.w3c.dom.ls.LSResourceResolver;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+/**
+ * The compiled schemas, shared by all the transformers of the JVM.
+ *
+ * <p>
+ * A schema is compiled once, then validates the documents of all the threads. A local schema file
+ * is compiled again when it changes. The schemas are read from the local files or from
+ * {@link XmlCatalog}, never from the network.
+ * </p>
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+final class SchemaCache {
+
+  private static final String LOCAL = "file,jar";
+  private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+  private static final Map<String, Schema> SCHEMAS = new ConcurrentHashMap<>();
+
+  static {
+    FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+  }
+
+  private SchemaCache() {}
+
+  /**
+   * Read the namespace of the root element and its schema location: the location of this
+   * namespace in <code>xsi:schemaLocation</code> or <code>xsi:noNamespaceSchemaLocation</code>.
+   *
+   * @param xml a document
+   * @return the namespace and the location, each may be {@code null}
+   * @throws XMLStreamException if the document is not well formed
+   */
+  static String[] getSchemaLocation(byte[] xml) throws XMLStreamException {
+    XMLStreamReader reader;
+    synchronized (FACTORY) {
+      reader = FACTORY.createXMLStreamReader(new ByteArrayInputStream(xml));
+    }
+    try {
+      while (reader.hasNext()) {
+        if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+          String namespace = reader.getNamespaceURI();
+          String locations = reader.getAttributeValue(
+              XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "schemaLocation");
+          if (namespace != null && locations != null) {
+            String[] pairs = locations.trim().split("\\s+");
+            for (int i = 0; i + 1 < pairs.length; i += 2) {
+              if (pairs[i].equals(namespace)) {
+                return new String[] {namespace, pairs[i + 1]};
+              }
+            }
+          }
+          return new String[] {namespace, reader.getAttributeValue(
+              XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "noNamespaceSchemaLocation")};
+        }
+      }
+      return new String[2];
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Get a compiled schema.
+   *
+   * @param location the location of the schema
+   * @param file the local file of the schema or {@code null} for the schema of the catalog
+   * @param resolver the resolver of the imported schemas
+   * @return the schema
+   */
+  static Schema get(String location, File file, LSResourceResolver resolver) {
+    String key = file == null ? "catalog:" + location
+        : file.getAbsolutePath() + '@' + file.lastModified() + ':' + file.length();
+    return SCHEMAS.computeIfAbsent(key, k -> compile(location, file, resolver));
+  }
+
+  private static Schema compile(String location, File file, LSResourceResolver resolver) {
+    Source source;
+    if (file != null) {
+      source = new StreamSource(file);
+    } else {
+      byte[] data = XmlCatalog.shared().get(null, location);
+      if (data == null) {
+        throw new GradleException("the schema " + location
+            + " is not in the catalog, give a local file with schema(location, file)");
+      }
+      source = new StreamSource(new ByteArrayInputStream(data), location);
+    }
+    // a schema factory is not thread-safe, it is used for one schema
+    SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+    factory.setResourceResolver(resolver);
+    try {
+      factory.setProperty(XMLConstants.ACCESS_EXTERNAL_SCHEMA, LOCAL);
+      factory.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, LOCAL);
+    } catch (SAXNotRecognizedException | SAXNotSupportedException ex) {
+      // before JAXP 1.5, the resolver is the only guard
+    }
+    try {
+      return factory.newSchema(source);
+    } catch (SAXException ex) {
+      throw new GradleException("cannot compile the schema " + location + ": " + ex.getMessage(),
+          ex);
+    }
+  }
+
+}
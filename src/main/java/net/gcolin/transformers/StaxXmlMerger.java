@@ -0,0 +1,286 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.gcolin.transformers;
+
+import org.gradle.api.GradleException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.Comment;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.ProcessingInstruction;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Merge xml documents with StAX, without building a DOM.
+ *
+ * <p>
+ * Only absolute xpath made of child steps (like <code>/caches/cache</code>) can be streamed. The
+ * elements matched in the other documents are appended to the parent of the first element matched
+ * in the first document, like {@link XmlMergeTransformer} does with a DOM. Without xpath, the
+ * children of the other roots are appended to the first root.
+ * </p>
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+final class StaxXmlMerger {
+
+  private static final Pattern SIMPLE_PATH = Pattern.compile("(/[A-Za-z_][A-Za-z0-9_.\\-]*){2,}");
+  private static final String REPORT_CDATA =
+      "http://java.sun.com/xml/stream/properties/report-cdata-event";
+  private static final String IGNORE_EXTERNAL_DTD =
+      "http://java.sun.com/xml/stream/properties/ignore-external-dtd";
+  private static final XMLInputFactory FACTORY = createFactory(XmlCatalog.shared());
+  private static final XMLInputFactory LENIENT_FACTORY = createFactory(XmlCatalog.lenient());
+
+  private final String xpath;
+  private final List<String> steps;
+  private final boolean compact;
+  private final XMLInputFactory factory;
+
+  /**
+   * Create a merger.
+   *
+   * @param xpath the elements to merge or {@code null} for all the children of the root.
+   * @param compact {@code true} for writing without indentation
+   * @param catalog the catalog of the external entities
+   */
+  StaxXmlMerger(String xpath, boolean compact, XmlCatalog catalog) {
+    this.xpath = xpath;
+    this.compact = compact;
+    this.factory = catalog.isLenient() ? LENIENT_FACTORY : FACTORY;
+    this.steps = xpath == null ? null : Arrays.asList(xpath.substring(1).split("/"));
+  }
+
+  private static XMLInputFactory createFactory(XmlCatalog catalog) {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+    factory.setXMLResolver(catalog);
+    // keep the CDATA sections like the DOM parser does
+    if (factory.isPropertySupported(REPORT_CDATA)) {
+      factory.setProperty(REPORT_CDATA, true);
+    }
+    // the external DTD is not loaded, like the DOM parser does
+    if (factory.isPropertySupported(IGNORE_EXTERNAL_DTD)) {
+      factory.setProperty(IGNORE_EXTERNAL_DTD, true);
+    }
+    return factory;
+  }
+
+  private XMLEventReader createReader(InputStream in) throws XMLStreamException {
+    // the entries are merged in parallel and a factory is not thread-safe
+    synchronized (factory) {
+      return factory.createXMLEventReader(in);
+    }
+  }
+
+  /**
+   * Check if an xpath can be merged with StAX.
+   *
+   * @param xpath the merge xpath
+   * @return {@code true} if the xpath is {@code null} or only contains child steps
+   */
+  static boolean supports(String xpath) {
+    return xpath == null || SIMPLE_PATH.matcher(xpath).matches();
+  }
+
+  /**
+   * Read a document to the end without writing it, so a malformed document fails.
+   *
+   * @param document a document
+   * @throws IOException if an I/O error occurs
+   * @throws XMLStreamException if the document is not well formed
+   */
+  void check(RetainedBytes document) throws IOException, XMLStreamException {
+    try (InputStream in = document.openStream()) {
+      XMLStreamReader reader;
+      synchronized (factory) {
+        reader = factory.createXMLStreamReader(in);
+      }
+      try {
+        while (reader.hasNext()) {
+          reader.next();
+        }
+      } finally {
+        reader.close();
+      }
+    }
+  }
+
+  void merge(List<RetainedBytes> documents, OutputStream out)
+      throws IOException, XMLStreamException {
+    XmlIndentWriter writer = new XmlIndentWriter(out, !compact);
+    try (InputStream in = documents.get(0).openStream()) {
+      merge(documents, in, writer);
+    }
+    writer.end();
+  }
+
+  private void merge(List<RetainedBytes> documents, InputStream in, XmlIndentWriter writer)
+      throws IOException, XMLStreamException {
+    XMLEventReader reader = createReader(in);
+    List<String> path = new ArrayList<>();
+    List<boolean[]> matched = new ArrayList<>();
+    boolean injected = false;
+    try {
+      while (reader.hasNext()) {
+        XMLEvent event = reader.nextEvent();
+        if (event.isStartElement()) {
+          String name = name(event.asStartElement().getName());
+          if (steps != null && !matched.isEmpty() && path.size() == steps.size() - 1
+              && name.equals(steps.get(path.size())) && isParentPath(path)) {
+            matched.get(matched.size() - 1)[0] = true;
+          }
+          path.add(name);
+          matched.add(new boolean[1]);
+          start(writer, event.asStartElement());
+        } else if (event.isEndElement()) {
+          if (!injected && isInjectionPoint(path, matched.get(matched.size() - 1)[0])) {
+            for (int i = 1; i < documents.size(); i++) {
+              inject(documents.get(i), writer);
+            }
+            injected = true;
+          }
+          path.remove(path.size() - 1);
+          matched.remove(matched.size() - 1);
+          writer.endElement();
+        } else if (!path.isEmpty() || !event.isCharacters()) {
+          write(writer, event);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    if (!injected) {
+      throw new GradleException("no element matches " + xpath + " in the first document");
+    }
+  }
+
+  private boolean isInjectionPoint(List<String> path, boolean hasMatch) {
+    if (steps == null) {
+      return path.size() == 1;
+    }
+    return hasMatch && path.size() == steps.size() - 1 && isParentPath(path);
+  }
+
+  private boolean isParentPath(List<String> path) {
+    for (int i = 0; i < path.size(); i++) {
+      if (!path.get(i).equals(steps.get(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void inject(RetainedBytes document, XmlIndentWriter writer)
+      throws IOException, XMLStreamException {
+    try (InputStream in = document.openStream()) {
+      XMLEventReader reader = createReader(in);
+      try {
+        inject(reader, writer);
+      } finally {
+        reader.close();
+      }
+    }
+  }
+
+  private void inject(XMLEventReader reader, XmlIndentWriter writer) throws XMLStreamException {
+    List<String> path = new ArrayList<>();
+    int copyDepth = -1;
+    while (reader.hasNext()) {
+      XMLEvent event = reader.nextEvent();
+      if (event.isStartElement()) {
+        path.add(name(event.asStartElement().getName()));
+        if (copyDepth == -1 && (steps == null ? path.size() == 2 : path.equals(steps))) {
+          copyDepth = path.size();
+        }
+        if (copyDepth != -1) {
+          start(writer, event.asStartElement());
+        }
+      } else if (event.isEndElement()) {
+        if (copyDepth != -1) {
+          writer.endElement();
+          if (path.size() == copyDepth) {
+            copyDepth = -1;
+          }
+        }
+        path.remove(path.size() - 1);
+      } else if (copyDepth != -1 || steps == null && path.size() == 1) {
+        write(writer, event);
+      }
+    }
+  }
+
+  private static String name(QName name) {
+    return name.getPrefix() == null || name.getPrefix().isEmpty() ? name.getLocalPart()
+        : name.getPrefix() + ":" + name.getLocalPart();
+  }
+
+  private static void start(XmlIndentWriter writer, StartElement element)
+      throws XMLStreamException {
+    writer.startElement(name(element.getName()));
+    for (Iterator<?> it = element.getNamespaces(); it.hasNext();) {
+      Namespace namespace = (Namespace) it.next();
+      writer.attribute(namespace.isDefaultNamespaceDeclaration() ? "xmlns"
+          : "xmlns:" + namespace.getPrefix(), namespace.getNamespaceURI());
+    }
+    for (Iterator<?> it = element.getAttributes(); it.hasNext();) {
+      Attribute attribute = (Attribute) it.next();
+      writer.attribute(name(attribute.getName()), attribute.getValue());
+    }
+  }
+
+  private static void write(XmlIndentWriter writer, XMLEvent event) throws XMLStreamException {
+    switch (event.getEventType()) {
+      case XMLEvent.CHARACTERS:
+      case XMLEvent.SPACE:
+      case XMLEvent.CDATA:
+        Characters characters = event.asCharacters();
+        if (characters.isCData()) {
+          writer.cdata(characters.getData());
+        } else {
+          writer.text(characters.getData());
+        }
+        break;
+      case XMLEvent.COMMENT:
+        writer.comment(((Comment) event).getText());
+        break;
+      case XMLEvent.PROCESSING_INSTRUCTION:
+        ProcessingInstruction pi = (ProcessingInstruction) event;
+        writer.processingInstruction(pi.getTarget(), pi.getData());
+        break;
+      default:
+        break;
+    }
+  }
+
+}
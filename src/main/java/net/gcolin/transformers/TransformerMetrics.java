@@ -0,0 +1,324 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.gcolin.transformers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of a transformer: the resources seen, the bytes read and written, the time spent in each
+ * phase, the peak of the retained resources kept on the heap by the memory budget and the peak of
+ * the heap used by the JVM when a parse or a merge ends, which includes the parsed documents. The
+ * phases are also recorded as JFR events when the JVM supports them.
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+public final class TransformerMetrics {
+
+  private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+  private static final MethodHandle START_EVENT;
+  private static final MethodHandle STOP_EVENT;
+
+  static {
+    MethodHandle start = null;
+    MethodHandle stop = null;
+    try {
+      // missing if the jar was built without JFR, not linkable if the JVM has no JFR
+      Class<?> type = Class.forName("net.gcolin.transformers.TransformerEvent", true,
+          TransformerMetrics.class.getClassLoader());
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      start = lookup.findStatic(type, "start",
+          MethodType.methodType(Object.class, String.class, String.class));
+      stop = lookup.findStatic(type, "stop", MethodType.methodType(void.class, Object.class));
+    } catch (ReflectiveOperationException | LinkageError ex) {
+      start = null;
+      stop = null;
+    }
+    START_EVENT = start;
+    STOP_EVENT = stop;
+  }
+
+  /**
+   * A phase of a transformer.
+   */
+  public enum Phase {
+    PARSE, MERGE, WRITE, VALIDATE
+  }
+
+  private final Logger logger = LoggerFactory.getLogger(TransformerMetrics.class);
+  private final String name;
+  private final AtomicLong resources = new AtomicLong();
+  private final AtomicLong duplicates = new AtomicLong();
+  private final AtomicLong bytesIn = new AtomicLong();
+  private final AtomicLong bytesOut = new AtomicLong();
+  private final AtomicLong[] nanos = new AtomicLong[Phase.values().length];
+  private final AtomicLong peakArenaHeapBytes = new AtomicLong();
+  private final AtomicLong peakHeapBytes = new AtomicLong();
+  private final AtomicLong spilledBytes = new AtomicLong();
+
+  TransformerMetrics(String name) {
+    this.name = name;
+    for (int i = 0; i < nanos.length; i++) {
+      nanos[i] = new AtomicLong();
+    }
+  }
+
+  private static Object startEvent(String name, Phase phase) {
+    try {
+      return (Object) START_EVENT.invokeExact(name, phase.name());
+    } catch (RuntimeException | Error ex) {
+      throw ex;
+    } catch (Throwable ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private static void stopEvent(Object event) {
+    try {
+      STOP_EVENT.invokeExact(event);
+    } catch (RuntimeException | Error ex) {
+      throw ex;
+    } catch (Throwable ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /**
+   * Start timing a phase. The timer must be stopped in a finally block.
+   *
+   * @param phase the phase
+   * @return the timer
+   */
+  Timer start(Phase phase) {
+    return new Timer(phase);
+  }
+
+  void resource(long size) {
+    resources.incrementAndGet();
+    bytesIn.addAndGet(size);
+  }
+
+  void duplicate() {
+    duplicates.incrementAndGet();
+  }
+
+  void retained(long heap, long spilled) {
+    max(peakArenaHeapBytes, heap);
+    spilledBytes.set(spilled);
+  }
+
+  private static void max(AtomicLong peak, long value) {
+    long current = peak.get();
+    while (value > current && !peak.compareAndSet(current, value)) {
+      current = peak.get();
+    }
+  }
+
+  /**
+   * Wrap the output of a transformer for counting the written bytes. The wrapper does not close
+   * the jar and writes arrays only, because the jar deflates only the arrays.
+   *
+   * @param out the jar
+   * @return the wrapper
+   */
+  OutputStream count(OutputStream out) {
+    return new CountingOutputStream(out);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getResources() {
+    return resources.get();
+  }
+
+  public long getDuplicates() {
+    return duplicates.get();
+  }
+
+  public long getBytesIn() {
+    return bytesIn.get();
+  }
+
+  public long getBytesOut() {
+    return bytesOut.get();
+  }
+
+  public long getNanos(Phase phase) {
+    return nanos[phase.ordinal()].get();
+  }
+
+  /**
+   * Get the peak of the bytes of the retained resources kept on the heap, the resources spilled to
+   * a file and the parsed documents are not counted.
+   *
+   * @return a number of bytes
+   */
+  public long getPeakArenaHeapBytes() {
+    return peakArenaHeapBytes.get();
+  }
+
+  /**
+   * Get the peak of the heap used by the JVM, sampled when a parse or a merge ends. It includes the
+   * parsed documents and the retained resources, and everything else the build keeps on the heap
+   * at that time, like the other tasks running in parallel.
+   *
+   * @return a number of bytes
+   */
+  public long getPeakHeapBytes() {
+    return peakHeapBytes.get();
+  }
+
+  public long getSpilledBytes() {
+    return spilledBytes.get();
+  }
+
+  /**
+   * Write the metrics as a JSON object.
+   *
+   * @param file the report
+   */
+  void write(File file) {
+    File parent = file.getAbsoluteFile().getParentFile();
+    try {
+      if (!parent.isDirectory() && !parent.mkdirs()) {
+        throw new IOException("cannot create " + parent);
+      }
+      Files.write(file.toPath(), toJson().getBytes(StandardCharsets.UTF_8));
+    } catch (IOException ex) {
+      logger.warn("cannot write {}", file, ex);
+    }
+  }
+
+  /**
+   * Get the metrics as a JSON object.
+   *
+   * @return a JSON object
+   */
+  public String toJson() {
+    StringBuilder str = new StringBuilder("{\n  \"transformer\": \"");
+    for (char ch : name.toCharArray()) {
+      if (ch == '"' || ch == '\\') {
+        str.append('\\');
+      }
+      str.append(ch);
+    }
+    str.append("\",\n");
+    str.append("  \"resources\": ").append(getResources()).append(",\n");
+    str.append("  \"duplicates\": ").append(getDuplicates()).append(",\n");
+    str.append("  \"bytesIn\": ").append(getBytesIn()).append(",\n");
+    str.append("  \"bytesOut\": ").append(getBytesOut()).append(",\n");
+    str.append("  \"parseNanos\": ").append(getNanos(Phase.PARSE)).append(",\n");
+    str.append("  \"mergeNanos\": ").append(getNanos(Phase.MERGE)).append(",\n");
+    str.append("  \"writeNanos\": ").append(getNanos(Phase.WRITE)).append(",\n");
+    str.append("  \"validateNanos\": ").append(getNanos(Phase.VALIDATE)).append(",\n");
+    str.append("  \"peakArenaHeapBytes\": ").append(getPeakArenaHeapBytes()).append(",\n");
+    str.append("  \"peakHeapBytes\": ").append(getPeakHeapBytes()).append(",\n");
+    str.append("  \"spilledBytes\": ").append(getSpilledBytes()).append("\n}\n");
+    return str.toString();
+  }
+
+  @Override
+  public String toString() {
+    return "TransformerMetrics{name=" + name + ", resources=" + resources + ", duplicates="
+        + duplicates + ", bytesIn=" + bytesIn + ", bytesOut=" + bytesOut + ", parseNanos="
+        + getNanos(Phase.PARSE) + ", mergeNanos=" + getNanos(Phase.MERGE) + ", writeNanos="
+        + getNanos(Phase.WRITE) + ", validateNanos=" + getNanos(Phase.VALIDATE)
+        + ", peakArenaHeapBytes=" + peakArenaHeapBytes + ", peakHeapBytes=" + peakHeapBytes
+        + '}';
+  }
+
+  /**
+   * Time of a phase.
+   */
+  final class Timer {
+
+    private final Phase phase;
+    private final long begin = System.nanoTime();
+    private final Object event;
+    private boolean stopped;
+
+    private Timer(Phase phase) {
+      this.phase = phase;
+      this.event = START_EVENT == null ? null : startEvent(name, phase);
+    }
+
+    /**
+     * Stop the timer. Only the first call counts.
+     */
+    void stop() {
+      if (stopped) {
+        return;
+      }
+      stopped = true;
+      nanos[phase.ordinal()].addAndGet(System.nanoTime() - begin);
+      if (phase == Phase.PARSE || phase == Phase.MERGE) {
+        // the documents are on the heap
+        max(peakHeapBytes, MEMORY.getHeapMemoryUsage().getUsed());
+      }
+      if (event != null) {
+        stopEvent(event);
+      }
+    }
+
+  }
+
+  private class CountingOutputStream extends OutputStream {
+
+    private final OutputStream out;
+
+    CountingOutputStream(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int data) throws IOException {
+      write(new byte[] {(byte) data}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] data, int off, int len) throws IOException {
+      out.write(data, off, len);
+      bytesOut.addAndGet(len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.flush();
+    }
+
+  }
+
+}
@@ -17,7 +17,11 @@ package net.gcolin.transformers;
 
 import com.github.jengelman.gradle.plugins.shadow.relocation.Relocator;
 
+import net.gcolin.transformers.TransformerMetrics.Phase;
+
+import org.apache.commons.io.IOUtils;
 import org.apache.tools.zip.ZipOutputStream;
+import org.gradle.api.GradleException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
@@ -25,8 +29,16 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -36,14 +48,17 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 
 /**
  * Transformer for web-fragment.xml.
@@ -53,33 +68,83 @@ import javax.xml.xpath.XPathFactory;
  */
 public class WebFragmentTransformer extends DomTransformer {
 
-  private DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-  private List<Document> all = new ArrayList<>();
+  private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+  private static final Set<String> HEADER = new HashSet<>(Arrays.asList("name", "ordering"));
+
+  static {
+    FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+    FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+  }
+
+  private static final String DEFAULT_NAME = "merged";
+
+  private List<RetainedBytes> all = new ArrayList<>();
+  private List<CompletableFuture<Ordering>> parsing = new ArrayList<>();
   private String newName;
+  private boolean splice;
   private Logger logger = LoggerFactory.getLogger(WebFragmentTransformer.class);
 
   public WebFragmentTransformer(String newName) {
     super(Arrays.asList("**/META-INF/web-fragment.xml"));
-    this.newName = newName == null ? "merged" : newName;
+    this.newName = newName == null ? DEFAULT_NAME : newName;
   }
 
   public WebFragmentTransformer() {
     this(null);
   }
 
+  /**
+   * Set the name of the merged fragment.
+   *
+   * @param newName a name or {@code null} for <code>merged</code>
+   */
   public void setNewName(String newName) {
-    this.newName = newName;
+    this.newName = newName == null ? DEFAULT_NAME : newName;
+  }
+
+  /**
+   * Read only the name and the ordering of the fragments and copy the bytes of their bodies in
+   * the merged fragment, without DOM nor XPath. The bodies keep their formatting. A fragment which
+   * cannot be spliced (DOCTYPE, encoding other than UTF-8, malformed body) is parsed.
+   *
+   * @param splice {@code true} for copying the bodies as bytes
+   */
+  public void setSplice(boolean splice) {
+    this.splice = splice;
+  }
+
+  public boolean isSplice() {
+    return splice;
+  }
+
+  @Override
+  protected void describe(Map<String, Object> settings) {
+    super.describe(settings);
+    settings.put("newName", newName);
+    settings.put("splice", splice);
   }
 
   @Override
   public void transform(String path, InputStream is, List<Relocator> relocators) {
     try {
-      all.add(factory.newDocumentBuilder().parse(is));
-    } catch (ParserConfigurationException | IOException | SAXException ex) {
+      RetainedBytes data = retain(path, relocate(path, IOUtils.toByteArray(is), relocators));
+      if (data == null) {
+        return;
+      }
+      all.add(data);
+      if (isParallel()) {
+        parsing.add(parseAsync(() -> readFragment(data)));
+      }
+    } catch (IOException ex) {
       logger.error(ex.getMessage(), ex);
     }
   }
 
+  @Override
+  protected List<RetainedBytes> getSources(String path) {
+    return all;
+  }
+
   @Override
   public boolean hasTransformedResource() {
     return !all.isEmpty();
@@ -88,110 +153,46 @@ public class WebFragmentTransformer extends DomTransformer {
   @Override
   public void modifyOutputStream(ZipOutputStream jos) {
     if (hasTransformedResource()) {
-      XPathFactory pathFactory = XPathFactory.newInstance();
       logger.info("find {} fragments", all.size());
       List<Ordering> fragments = new ArrayList<>(all.size());
-      for (Document doc : all) {
-        try {
-          Ordering order = new Ordering();
-          order.document = doc;
-          XPath xpath = pathFactory.newXPath();
-          Node name = (Node) xpath.evaluate("/web-fragment/name", doc, XPathConstants.NODE);
-          if (name != null) {
-            order.name = name.getTextContent().trim();
-            name.getParentNode().removeChild(name);
-          }
-          Node node = (Node) xpath.evaluate("/web-fragment/ordering", doc, XPathConstants.NODE);
-          if (node != null) {
-            NodeList befores = (NodeList) xpath.evaluate("before", node, XPathConstants.NODESET);
-            for (int i = 0; i < befores.getLength(); i++) {
-              Node before = befores.item(i);
-              NodeList names = (NodeList) xpath.evaluate("name", before, XPathConstants.NODESET);
-              for (int j = 0; j < names.getLength(); j++) {
-                order.before.add(names.item(j).getTextContent().trim());
-              }
-              order.beforeOthers |= xpath.evaluate("others", before, XPathConstants.NODE) != null;
-            }
-            NodeList afters = (NodeList) xpath.evaluate("after", node, XPathConstants.NODESET);
-            for (int i = 0; i < afters.getLength(); i++) {
-              Node after = afters.item(i);
-              NodeList names = (NodeList) xpath.evaluate("name", after, XPathConstants.NODESET);
-              for (int j = 0; j < names.getLength(); j++) {
-                order.after.add(names.item(j).getTextContent().trim());
-              }
-              order.afterOthers |= xpath.evaluate("others", after, XPathConstants.NODE) != null;
-            }
-            node.getParentNode().removeChild(node);
+      try {
+        if (parsing.isEmpty()) {
+          for (RetainedBytes data : all) {
+            addFragment(fragments, data);
           }
-          fragments.add(order);
-        } catch (XPathExpressionException ex) {
-          throw new RuntimeException(ex);
-        }
-      }
-
-      Map<String, Ordering> fragmentMap = new HashMap<>();
-      for (Ordering fragment : fragments) {
-        fragmentMap.put(fragment.name, fragment);
-      }
-
-      for (int i = 0; i < fragments.size(); i++) {
-        Ordering ordering = fragments.get(i);
-        if (ordering.afterOthers) {
-          for (int j = 0; j < fragments.size(); j++) {
-            Ordering ordering2 = fragments.get(j);
-            if (i != j && !ordering2.after.contains(ordering.name)) {
-              ordering.after.add(ordering2.name);
+        } else {
+          for (CompletableFuture<Ordering> future : parsing) {
+            Ordering fragment = join(future);
+            if (fragment != null) {
+              fragments.add(fragment);
             }
           }
         }
-        if (ordering.beforeOthers) {
-          for (int j = 0; j < fragments.size(); j++) {
-            Ordering ordering2 = fragments.get(j);
-            if (i != j && !ordering2.before.contains(ordering.name)) {
-              ordering.before.add(ordering2.name);
-            }
-          }
+      } finally {
+        parsing.clear();
+        // with validation, the fragments are kept for finding the invalid ones, and the spliced
+        // fragments are copied from them
+        if (fragments.isEmpty()
+            || !isValidate() && fragments.stream().allMatch(x -> x.data == null)) {
+          all.clear();
+          releaseRetained();
         }
       }
-
-      boolean change = true;
-      while (change) {
-        change = false;
-        for (Ordering fragment : fragments) {
-          int beforeSize = fragment.before.size();
-          int afterSize = fragment.after.size();
-          for (String name : fragment.before) {
-            Ordering order = fragmentMap.get(name);
-            if (order != null) {
-              fragment.before.addAll(order.before);
-            }
-          }
-          for (String name : fragment.after) {
-            Ordering order = fragmentMap.get(name);
-            if (order != null) {
-              fragment.after.addAll(order.after);
-            }
-          }
-          change |= beforeSize != fragment.before.size() || afterSize != fragment.after.size();
-        }
+      if (fragments.isEmpty()) {
+        writeReport();
+        return;
       }
 
+      TransformerMetrics.Timer timer = getMetrics().start(Phase.MERGE);
       try {
-        Collections.sort(fragments, newFragmentComparator());
-        
+        fragments = sort(fragments);
+
         if(logger.isInfoEnabled()) {
           logger.info("fragments : {}", fragments.stream().map(Ordering::getName).collect(Collectors.toList()));
         }
 
-        Document allFragments = factory.newDocumentBuilder().newDocument();
-        Node root = fragments.get(0).document.getDocumentElement().cloneNode(false);
-        allFragments.appendChild(allFragments.adoptNode(root));
-        Node nameNode = allFragments.createElement("name");
-        nameNode.appendChild(allFragments.createTextNode(newName));
-        root.appendChild(nameNode);
-
-        Set<String> before = new HashSet<>();
-        Set<String> after = new HashSet<>();
+        Set<String> before = new TreeSet<>();
+        Set<String> after = new TreeSet<>();
 
         for (Ordering fragment : fragments) {
           if (fragment.before != null) {
@@ -218,32 +219,354 @@ public class WebFragmentTransformer extends DomTransformer {
           before = Collections.emptySet();
         }
 
-        if (beforeOthers || afterOthers || !before.isEmpty() || !after.isEmpty()) {
-          Node ordering = allFragments.createElement("ordering");
-          root.appendChild(ordering);
-          addOrdering(allFragments, ordering, "before", beforeOthers, before);
-          addOrdering(allFragments, ordering, "after", afterOthers, after);
+        if (fragments.stream().allMatch(x -> x.layout != null)) {
+          timer.stop();
+          writeEntries(jos, Collections.singletonList("META-INF/web-fragment.xml"),
+              splicer(fragments, beforeOthers, before, afterOthers, after));
+        } else {
+          Document allFragments = merge(fragments, beforeOthers, before, afterOthers, after);
+          timer.stop();
+          write(allFragments, jos, "META-INF/web-fragment.xml");
         }
-
-        for (Ordering ordering : fragments) {
-          NodeList children = ordering.document.getDocumentElement().getChildNodes();
-          for (int i = 0; i < children.getLength(); i++) {
-            root.appendChild(allFragments.adoptNode(children.item(i).cloneNode(true)));
-          }
-        }
-        write(allFragments, jos, "META-INF/web-fragment.xml");
       } catch (RuntimeException ex) {
         throw ex;
       } catch (Exception ex) {
         logger.error(ex.getMessage(), ex);
       } finally {
+        timer.stop();
+        logger.debug("{}", getXmlPool());
+        all.clear();
+        releaseRetained();
+      }
+      writeReport();
+    }
+  }
+
+  private Document merge(List<Ordering> fragments, boolean beforeOthers, Set<String> before,
+      boolean afterOthers, Set<String> after)
+      throws IOException, SAXException, XPathExpressionException {
+    for (Ordering fragment : fragments) {
+      if (fragment.document == null && fragment.cached == null) {
+        parseBody(fragment);
+      }
+    }
+    Document allFragments = getXmlPool().newDocument();
+    Node root = fragments.get(0).createRoot(allFragments);
+    allFragments.appendChild(root);
+    Node nameNode = allFragments.createElement("name");
+    nameNode.appendChild(allFragments.createTextNode(newName));
+    root.appendChild(nameNode);
+
+    if (beforeOthers || afterOthers || !before.isEmpty() || !after.isEmpty()) {
+      Node ordering = allFragments.createElement("ordering");
+      root.appendChild(ordering);
+      addOrdering(allFragments, ordering, "before", beforeOthers, before);
+      addOrdering(allFragments, ordering, "after", afterOthers, after);
+    }
+
+    for (Ordering ordering : fragments) {
+      ordering.appendBody(allFragments, root);
+    }
+    return allFragments;
+  }
+
+  private EntryRenderer splicer(List<Ordering> fragments, boolean beforeOthers,
+      Set<String> before, boolean afterOthers, Set<String> after) {
+    return (path, out) -> splice(fragments, beforeOthers, before, afterOthers, after, out);
+  }
+
+  /**
+   * Write the merged fragment by copying the start tag of the first fragment and the bodies of all
+   * the fragments from their bytes.
+   */
+  private void splice(List<Ordering> fragments, boolean beforeOthers, Set<String> before,
+      boolean afterOthers, Set<String> after, OutputStream out) throws IOException {
+    TransformerMetrics.Timer timer = getMetrics().start(Phase.WRITE);
+    try {
+      boolean indent = !isCompact();
+      out.write(XmlIndentWriter.DECLARATION, 0,
+          indent ? XmlIndentWriter.DECLARATION.length : XmlIndentWriter.DECLARATION.length - 1);
+      Ordering first = fragments.get(0);
+      copy(first.data, first.layout.getRootTag(), out);
+
+      StringBuilder header = new StringBuilder();
+      String margin = indent ? "\n  " : "";
+      header.append(margin).append("<name>");
+      escape(newName, header);
+      header.append("</name>");
+      if (beforeOthers || afterOthers || !before.isEmpty() || !after.isEmpty()) {
+        header.append(margin).append("<ordering>");
+        appendOrdering(header, indent, "before", beforeOthers, before);
+        appendOrdering(header, indent, "after", afterOthers, after);
+        header.append(margin).append("</ordering>");
+      }
+      out.write(header.toString().getBytes(StandardCharsets.UTF_8));
+
+      for (Ordering fragment : fragments) {
+        copy(fragment.data, fragment.layout.getBody(), out);
+      }
+      String end = (indent ? "\n</" : "</") + first.layout.getRootName() + (indent ? ">\n" : ">");
+      out.write(end.getBytes(StandardCharsets.UTF_8));
+      out.flush();
+    } finally {
+      timer.stop();
+    }
+  }
+
+  /**
+   * Copy byte ranges of a retained resource, a spilled resource is not loaded on the heap.
+   *
+   * @param ranges pairs of start and end offsets, in order
+   */
+  private static void copy(RetainedBytes data, int[] ranges, OutputStream out)
+      throws IOException {
+    try (InputStream in = data.openStream()) {
+      long position = 0;
+      for (int i = 0; i < ranges.length; i += 2) {
+        IOUtils.copyLarge(in, out, ranges[i] - position, ranges[i + 1] - ranges[i]);
+        position = ranges[i + 1];
+      }
+    }
+  }
+
+  private static void appendOrdering(StringBuilder header, boolean indent, String orderName,
+      boolean others, Set<String> names) {
+    if (others || !names.isEmpty()) {
+      String margin = indent ? "\n    " : "";
+      String inner = indent ? "\n      " : "";
+      header.append(margin).append('<').append(orderName).append('>');
+      if (others) {
+        header.append(inner).append("<others/>");
+      } else {
+        for (String name : names) {
+          header.append(inner).append("<name>");
+          escape(name, header);
+          header.append("</name>");
+        }
+      }
+      header.append(margin).append("</").append(orderName).append('>');
+    }
+  }
+
+  private static void escape(String str, StringBuilder out) {
+    for (int i = 0; i < str.length(); i++) {
+      char ch = str.charAt(i);
+      if (ch == '<') {
+        out.append("&lt;");
+      } else if (ch == '>') {
+        out.append("&gt;");
+      } else if (ch == '&') {
+        out.append("&amp;");
+      } else {
+        out.append(ch);
+      }
+    }
+  }
+
+  private void addFragment(List<Ordering> fragments, RetainedBytes data) {
+    Ordering fragment = readFragment(data);
+    if (fragment != null) {
+      fragments.add(fragment);
+    }
+  }
+
+  /**
+   * Read a fragment. A fragment which cannot be read is logged and skipped, it may run on the
+   * shared executor.
+   *
+   * @return the fragment or {@code null} if it cannot be read
+   */
+  private Ordering readFragment(RetainedBytes data) {
+    TransformerMetrics.Timer timer = getMetrics().start(Phase.PARSE);
+    try {
+      if (splice) {
+        Ordering order = scanFragment(data);
+        if (order != null) {
+          return order;
+        }
+      }
+      XPath xpath = getXmlPool().borrowXPath();
+      try {
+        return readFragment(data, xpath);
+      } finally {
+        getXmlPool().release(xpath);
+      }
+    } catch (IOException | SAXException ex) {
+      logger.error(ex.getMessage(), ex);
+      return null;
+    } catch (XPathExpressionException ex) {
+      throw new RuntimeException(ex);
+    } finally {
+      timer.stop();
+    }
+  }
+
+  /**
+   * Read the name and the ordering of a fragment with StAX, from the byte ranges found by
+   * {@link XmlLayout}. The whole fragment is read once with StAX before, so a malformed body is
+   * parsed with DOM and fails like without splicing, instead of being copied.
+   *
+   * @return the fragment or {@code null} if it must be parsed
+   */
+  private Ordering scanFragment(RetainedBytes data) throws IOException {
+    // the bytes are only kept for the scan, the bodies are copied from the retained resource
+    byte[] bytes = data.toByteArray();
+    XmlLayout layout = XmlLayout.scan(bytes, HEADER);
+    if (layout == null) {
+      logger.debug("cannot splice a fragment, it is parsed");
+      return null;
+    }
+    Ordering order = new Ordering();
+    try {
+      check(bytes);
+      int[] name = layout.getExtracted("name");
+      if (name != null) {
+        XMLStreamReader reader = createReader(bytes, name);
         try {
-          jos.closeEntry();
-        } catch (IOException ex) {
-          logger.error(ex.getMessage(), ex);
+          reader.nextTag();
+          order.name = reader.getElementText().trim();
+        } finally {
+          reader.close();
         }
       }
+      int[] ordering = layout.getExtracted("ordering");
+      if (ordering != null) {
+        readOrdering(order, createReader(bytes, ordering));
+      }
+    } catch (XMLStreamException ex) {
+      logger.debug("cannot splice a fragment, it is parsed", ex);
+      return null;
     }
+    order.data = data;
+    order.layout = layout;
+    return order;
+  }
+
+  private static void check(byte[] bytes) throws XMLStreamException {
+    XMLStreamReader reader = createReader(bytes, new int[] {0, bytes.length});
+    try {
+      while (reader.hasNext()) {
+        reader.next();
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static XMLStreamReader createReader(byte[] bytes, int[] range)
+      throws XMLStreamException {
+    InputStream in = new ByteArrayInputStream(bytes, range[0], range[1] - range[0]);
+    synchronized (FACTORY) {
+      return FACTORY.createXMLStreamReader(in, "UTF-8");
+    }
+  }
+
+  private static void readOrdering(Ordering order, XMLStreamReader reader)
+      throws XMLStreamException {
+    try {
+      Set<String> names = null;
+      boolean before = false;
+      int depth = 0;
+      while (reader.hasNext()) {
+        int event = reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          depth++;
+          String local = reader.getLocalName();
+          if (depth == 2) {
+            before = "before".equals(local);
+            names = before ? order.before : "after".equals(local) ? order.after : null;
+          } else if (depth == 3 && names != null && "name".equals(local)) {
+            names.add(reader.getElementText().trim());
+            depth--;
+          } else if (depth == 3 && names != null && "others".equals(local)) {
+            order.beforeOthers |= before;
+            order.afterOthers |= !before;
+          }
+        } else if (event == XMLStreamConstants.END_ELEMENT) {
+          depth--;
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Parse the body of a spliced fragment, when another fragment cannot be spliced.
+   */
+  private void parseBody(Ordering fragment)
+      throws IOException, SAXException, XPathExpressionException {
+    XPath xpath = getXmlPool().borrowXPath();
+    try {
+      Document doc;
+      try (InputStream in = fragment.data.openStream()) {
+        doc = getXmlPool().parse(in);
+      }
+      fragment.document = readOrdering(doc, xpath).document;
+    } finally {
+      getXmlPool().release(xpath);
+    }
+  }
+
+  /**
+   * Read the ordering of a fragment. With a cache directory, the ordering and the parsed body are
+   * read from the cache if the same fragment was read in a previous build.
+   */
+  private Ordering readFragment(RetainedBytes data, XPath xpath)
+      throws IOException, SAXException, XPathExpressionException {
+    MergeCache cache = getCache();
+    if (cache == null) {
+      try (InputStream in = data.openStream()) {
+        return readOrdering(getXmlPool().parse(in), xpath);
+      }
+    }
+    byte[] bytes = data.toByteArray();
+    String key = MergeCache.key("web-fragment:" + getCatalog().getCacheKey(), bytes);
+    byte[] entry = cache.read(key);
+    if (entry != null) {
+      Ordering order = new Ordering();
+      order.cached = entry;
+      order.readMetadata(new DataInputStream(new ByteArrayInputStream(entry)));
+      return order;
+    }
+    Ordering order = readOrdering(getXmlPool().parse(new ByteArrayInputStream(bytes)), xpath);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    order.write(new DataOutputStream(out));
+    cache.write(key, out.toByteArray());
+    return order;
+  }
+
+  private Ordering readOrdering(Document doc, XPath xpath) throws XPathExpressionException {
+    Ordering order = new Ordering();
+    order.document = doc;
+    Node name = (Node) xpath.evaluate("/web-fragment/name", doc, XPathConstants.NODE);
+    if (name != null) {
+      order.name = name.getTextContent().trim();
+      name.getParentNode().removeChild(name);
+    }
+    Node node = (Node) xpath.evaluate("/web-fragment/ordering", doc, XPathConstants.NODE);
+    if (node != null) {
+      NodeList befores = (NodeList) xpath.evaluate("before", node, XPathConstants.NODESET);
+      for (int i = 0; i < befores.getLength(); i++) {
+        Node before = befores.item(i);
+        NodeList names = (NodeList) xpath.evaluate("name", before, XPathConstants.NODESET);
+        for (int j = 0; j < names.getLength(); j++) {
+          order.before.add(names.item(j).getTextContent().trim());
+        }
+        order.beforeOthers |= xpath.evaluate("others", before, XPathConstants.NODE) != null;
+      }
+      NodeList afters = (NodeList) xpath.evaluate("after", node, XPathConstants.NODESET);
+      for (int i = 0; i < afters.getLength(); i++) {
+        Node after = afters.item(i);
+        NodeList names = (NodeList) xpath.evaluate("name", after, XPathConstants.NODESET);
+        for (int j = 0; j < names.getLength(); j++) {
+          order.after.add(names.item(j).getTextContent().trim());
+        }
+        order.afterOthers |= xpath.evaluate("others", after, XPathConstants.NODE) != null;
+      }
+      node.getParentNode().removeChild(node);
+    }
+    return order;
   }
 
   private void addOrdering(Document document, Node node, String orderName, boolean others,
@@ -264,19 +587,224 @@ public class WebFragmentTransformer extends DomTransformer {
     }
   }
 
+  /**
+   * Sort the fragments with a topological sort (Kahn's algorithm) in O(V+E).
+   *
+   * <p>
+   * The fragments with <code>&lt;before&gt;&lt;others/&gt;</code> come first and the fragments
+   * with <code>&lt;after&gt;&lt;others/&gt;</code> come last. A fragment which must be before a
+   * fragment of the first group joins the first group and a fragment which must be after a fragment
+   * of the last group joins the last group. The order of the input is kept when there is no
+   * constraint, so the result is the same on every run.
+   * </p>
+   *
+   * @param fragments the fragments in input order
+   * @return the sorted fragments
+   */
+  private List<Ordering> sort(List<Ordering> fragments) {
+    int size = fragments.size();
+    Map<String, Integer> ids = new HashMap<>();
+    for (int i = 0; i < size; i++) {
+      String name = fragments.get(i).name;
+      if (name != null && !ids.containsKey(name)) {
+        ids.put(name, i);
+      }
+    }
+
+    // adjacency lists in compressed form: the successors of i are in edges[start[i]..start[i+1]]
+    int[] start = new int[size + 1];
+    for (int i = 0; i < size; i++) {
+      Ordering fragment = fragments.get(i);
+      for (String name : fragment.before) {
+        Integer to = ids.get(name);
+        if (to != null && to != i) {
+          start[i + 1]++;
+        }
+      }
+      for (String name : fragment.after) {
+        Integer from = ids.get(name);
+        if (from != null && from != i) {
+          start[from + 1]++;
+        }
+      }
+    }
+    for (int i = 0; i < size; i++) {
+      start[i + 1] += start[i];
+    }
+    int[] edges = new int[start[size]];
+    int[] fill = Arrays.copyOf(start, size);
+    for (int i = 0; i < size; i++) {
+      Ordering fragment = fragments.get(i);
+      for (String name : fragment.before) {
+        Integer to = ids.get(name);
+        if (to != null && to != i) {
+          edges[fill[i]++] = to;
+        }
+      }
+      for (String name : fragment.after) {
+        Integer from = ids.get(name);
+        if (from != null && from != i) {
+          edges[fill[from]++] = i;
+        }
+      }
+    }
+
+    int[] tiers = new int[size];
+    for (int i = 0; i < size; i++) {
+      Ordering fragment = fragments.get(i);
+      tiers[i] = fragment.beforeOthers ? 0 : fragment.afterOthers ? 2 : 1;
+    }
+
+    int[] order = kahn(fragments, start, edges, new int[size]);
+    for (int i = 0; i < size; i++) {
+      int from = order[i];
+      if (tiers[from] == 2) {
+        for (int e = start[from]; e < start[from + 1]; e++) {
+          if (tiers[edges[e]] == 1) {
+            tiers[edges[e]] = 2;
+          }
+        }
+      }
+    }
+    for (int i = size - 1; i >= 0; i--) {
+      int from = order[i];
+      for (int e = start[from]; e < start[from + 1]; e++) {
+        if (tiers[edges[e]] == 0) {
+          tiers[from] = 0;
+        }
+      }
+    }
+
+    order = kahn(fragments, start, edges, tiers);
+    List<Ordering> sorted = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      sorted.add(fragments.get(order[i]));
+    }
+    return sorted;
+  }
+
+  private int[] kahn(List<Ordering> fragments, int[] start, int[] edges, int[] tiers) {
+    int size = fragments.size();
+    int[] indegree = new int[size];
+    for (int edge : edges) {
+      indegree[edge]++;
+    }
+    // one FIFO queue per tier
+    int[][] queues = new int[3][size];
+    int[] heads = new int[3];
+    int[] tails = new int[3];
+    for (int i = 0; i < size; i++) {
+      if (indegree[i] == 0) {
+        queues[tiers[i]][tails[tiers[i]]++] = i;
+      }
+    }
+    int[] order = new int[size];
+    int count = 0;
+    for (int tier = 0; tier < 3;) {
+      if (heads[tier] == tails[tier]) {
+        tier++;
+        continue;
+      }
+      int from = queues[tier][heads[tier]++];
+      order[count++] = from;
+      for (int e = start[from]; e < start[from + 1]; e++) {
+        int to = edges[e];
+        if (--indegree[to] == 0) {
+          queues[tiers[to]][tails[tiers[to]]++] = to;
+          tier = Math.min(tier, tiers[to]);
+        }
+      }
+    }
+    if (count < size) {
+      List<String> cycle = new ArrayList<>();
+      for (int i = 0; i < size; i++) {
+        if (indegree[i] > 0) {
+          cycle.add(fragments.get(i).name);
+        }
+      }
+      throw new GradleException("cycle in the ordering of the web fragments " + cycle);
+    }
+    return order;
+  }
+
   public static class Ordering {
 
     private String name;
     private Document document;
+    private byte[] cached;
+    private RetainedBytes data;
+    private XmlLayout layout;
     private boolean beforeOthers;
     private boolean afterOthers;
-    private Set<String> after = new HashSet<>();
-    private Set<String> before = new HashSet<>();
+    private Set<String> after = new TreeSet<>();
+    private Set<String> before = new TreeSet<>();
     
     public String getName() {
       return name;
     }
 
+    private Node createRoot(Document target) throws IOException {
+      if (document != null) {
+        return target.adoptNode(document.getDocumentElement().cloneNode(false));
+      }
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(cached));
+      readMetadata(in);
+      return NodeCodec.readShallow(target, in);
+    }
+
+    private void appendBody(Document target, Node root) throws IOException {
+      if (document != null) {
+        Node child = document.getDocumentElement().getFirstChild();
+        while (child != null) {
+          Node next = child.getNextSibling();
+          root.appendChild(target.adoptNode(child));
+          child = next;
+        }
+      } else {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(cached));
+        readMetadata(in);
+        NodeCodec.readShallow(target, in);
+        NodeCodec.readChildren(target, root, in);
+      }
+    }
+
+    private void write(DataOutput out) throws IOException {
+      out.writeBoolean(name != null);
+      if (name != null) {
+        NodeCodec.writeString(name, out);
+      }
+      out.writeBoolean(beforeOthers);
+      out.writeBoolean(afterOthers);
+      writeNames(before, out);
+      writeNames(after, out);
+      NodeCodec.writeShallow(document.getDocumentElement(), out);
+      NodeCodec.writeChildren(document.getDocumentElement(), out);
+    }
+
+    private void readMetadata(DataInput in) throws IOException {
+      name = in.readBoolean() ? NodeCodec.readString(in) : null;
+      beforeOthers = in.readBoolean();
+      afterOthers = in.readBoolean();
+      before = readNames(in);
+      after = readNames(in);
+    }
+
+    private static void writeNames(Set<String> names, DataOutput out) throws IOException {
+      out.writeInt(names.size());
+      for (String str : names) {
+        NodeCodec.writeString(str, out);
+      }
+    }
+
+    private static Set<String> readNames(DataInput in) throws IOException {
+      int nb = in.readInt();
+      Set<String> names = new TreeSet<>();
+      for (int i = 0; i < nb; i++) {
+        names.add(NodeCodec.readString(in));
+      }
+      return names;
+    }
+
     @Override
     public String toString() {
       return "Ordering{" + "name=" + name + ", document=" + document + ", beforeOthers="
@@ -291,7 +819,10 @@ public class WebFragmentTransformer extends DomTransformer {
    * Create a Comparator for fragments.
    *
    * @return a Comparator for fragments.
+   * @deprecated this comparator is not transitive, the fragments are sorted with a topological
+   *             sort.
    */
+  @Deprecated
   public Comparator<Ordering> newFragmentComparator() {
     return new Comparator<Ordering>() {
 
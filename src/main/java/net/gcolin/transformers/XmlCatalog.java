@@ -0,0 +1,280 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.gcolin.transformers;
+
+import org.apache.commons.io.IOUtils;
+import org.gradle.api.GradleException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.ls.DOMImplementationLS;
+import org.w3c.dom.ls.LSInput;
+import org.w3c.dom.ls.LSResourceResolver;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLResolver;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Resolve the external entities of the parsed xml without network, with the catalog bundled in
+ * <code>net/gcolin/transformers/catalog</code>.
+ *
+ * <p>
+ * The catalog maps public and system identifiers to bundled resources: the J2EE descriptor DTDs
+ * and the schemas of the web fragments and the CDI descriptors, with the schemas they include. It
+ * is loaded once and the resources are kept in memory after their first use. An external entity
+ * which is not in the catalog fails the parsing, unless the catalog is {@link #lenient()}: it is
+ * then read as empty, with a warning. A schema which is not in the catalog is left to the schema
+ * factory, which only reads local files.
+ * </p>
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+public final class XmlCatalog implements EntityResolver, XMLResolver, LSResourceResolver {
+
+  private static final String DIRECTORY = "catalog/";
+  private static final byte[] EMPTY = new byte[0];
+  private static final XmlCatalog SHARED = new XmlCatalog();
+  private static final XmlCatalog LENIENT = new XmlCatalog(SHARED);
+
+  private final Properties entries;
+  private final Map<String, byte[]> resources;
+  private final Set<String> missing;
+  private final boolean lenient;
+  private final String digest;
+  private final Logger logger = LoggerFactory.getLogger(XmlCatalog.class);
+  private volatile DOMImplementationLS implementation;
+
+  private XmlCatalog() {
+    entries = new Properties();
+    resources = new ConcurrentHashMap<>();
+    missing = ConcurrentHashMap.newKeySet();
+    lenient = false;
+    try (InputStream in = open("catalog.properties")) {
+      byte[] data = IOUtils.toByteArray(in);
+      digest = MergeCache.key("catalog", data);
+      entries.load(new ByteArrayInputStream(data));
+    } catch (IOException ex) {
+      throw new GradleException(ex.getMessage(), ex);
+    }
+  }
+
+  private XmlCatalog(XmlCatalog strict) {
+    entries = strict.entries;
+    resources = strict.resources;
+    missing = strict.missing;
+    digest = strict.digest;
+    lenient = true;
+  }
+
+  /**
+   * Get the catalog shared by all the parsers. An external entity which is not in the catalog
+   * fails the parsing.
+   *
+   * @return the shared catalog
+   */
+  public static XmlCatalog shared() {
+    return SHARED;
+  }
+
+  /**
+   * Get the catalog which reads the external entities missing in the catalog as empty, with a
+   * warning. The J2EE descriptors declare no entity, an unknown entity is more likely a mistake.
+   *
+   * @return the lenient catalog
+   */
+  public static XmlCatalog lenient() {
+    return LENIENT;
+  }
+
+  public boolean isLenient() {
+    return lenient;
+  }
+
+  /**
+   * Describe the catalog in the keys of {@link MergeCache}: a document parsed with another
+   * catalog or with another resolution of the unknown entities is parsed again.
+   *
+   * @return the entries digest and the resolution of the unknown entities
+   */
+  String getCacheKey() {
+    return (lenient ? "lenient:" : "strict:") + digest;
+  }
+
+  /**
+   * Get the bundled resource of an entity. The public identifier is looked up first, then the
+   * system identifier, with <code>https</code> like <code>http</code> and the reverse.
+   *
+   * @param publicId the public identifier or {@code null}
+   * @param systemId the system identifier or {@code null}
+   * @return the bytes of the resource or {@code null} if the entity is not in the catalog
+   */
+  public byte[] get(String publicId, String systemId) {
+    String name = publicId == null ? null : entries.getProperty(publicId);
+    if (name == null && systemId != null) {
+      name = entries.getProperty(systemId);
+      if (name == null && systemId.startsWith("https:")) {
+        name = entries.getProperty("http:" + systemId.substring(6));
+      } else if (name == null && systemId.startsWith("http:")) {
+        name = entries.getProperty("https:" + systemId.substring(5));
+      }
+    }
+    return name == null ? null : resources.computeIfAbsent(name, this::load);
+  }
+
+  /**
+   * Resolve a system identifier against the location of the resource which references it, like
+   * the relative <code>schemaLocation</code> of an included schema.
+   *
+   * @param systemId the system identifier or {@code null}
+   * @param baseUri the location of the referencing resource or {@code null}
+   * @return the absolute system identifier
+   */
+  static String absolute(String systemId, String baseUri) {
+    if (systemId == null || baseUri == null) {
+      return systemId;
+    }
+    try {
+      URI uri = new URI(systemId);
+      return uri.isAbsolute() ? systemId : new URI(baseUri).resolve(uri).toString();
+    } catch (URISyntaxException | IllegalArgumentException ex) {
+      return systemId;
+    }
+  }
+
+  private byte[] load(String name) {
+    try (InputStream in = open(name)) {
+      return IOUtils.toByteArray(in);
+    } catch (IOException ex) {
+      throw new GradleException(ex.getMessage(), ex);
+    }
+  }
+
+  private InputStream open(String name) throws IOException {
+    InputStream in = XmlCatalog.class.getResourceAsStream(DIRECTORY + name);
+    if (in == null) {
+      throw new IOException("cannot find " + DIRECTORY + name + " in the transformers jar");
+    }
+    return in;
+  }
+
+  // null if the entity is unknown and the catalog is strict
+  private byte[] resolve(String publicId, String systemId) {
+    byte[] data = get(publicId, systemId);
+    if (data == null && lenient) {
+      if (missing.add(describe(publicId, systemId))) {
+        logger.warn("the external entity {} is not in the catalog, it is read as empty",
+            describe(publicId, systemId));
+      }
+      return EMPTY;
+    }
+    return data;
+  }
+
+  private static String describe(String publicId, String systemId) {
+    return publicId == null ? systemId : publicId + " " + systemId;
+  }
+
+  private static String unknown(String publicId, String systemId) {
+    return "the external entity " + describe(publicId, systemId)
+        + " is not in the catalog, read it as empty with lenientEntities";
+  }
+
+  @Override
+  public InputSource resolveEntity(String publicId, String systemId) throws SAXException {
+    byte[] data = resolve(publicId, systemId);
+    if (data == null) {
+      throw new SAXException(unknown(publicId, systemId));
+    }
+    InputSource source = new InputSource(new ByteArrayInputStream(data));
+    source.setPublicId(publicId);
+    source.setSystemId(systemId);
+    return source;
+  }
+
+  @Override
+  public Object resolveEntity(String publicId, String systemId, String baseUri,
+      String namespace) throws XMLStreamException {
+    String absolute = absolute(systemId, baseUri);
+    byte[] data = resolve(publicId, absolute);
+    if (data == null) {
+      throw new XMLStreamException(unknown(publicId, absolute));
+    }
+    return new ByteArrayInputStream(data);
+  }
+
+  @Override
+  public LSInput resolveResource(String type, String namespaceUri, String publicId,
+      String systemId, String baseUri) {
+    String absolute = absolute(systemId, baseUri);
+    byte[] data = get(publicId, absolute);
+    if (data == null && !XMLConstants.W3C_XML_SCHEMA_NS_URI.equals(type)) {
+      data = resolve(publicId, absolute);
+    }
+    if (data == null) {
+      // the schema factory only reads the local files
+      return null;
+    }
+    LSInput input = getImplementation().createLSInput();
+    input.setByteStream(new ByteArrayInputStream(data));
+    input.setPublicId(publicId);
+    input.setSystemId(absolute);
+    input.setBaseURI(baseUri);
+    return input;
+  }
+
+  /**
+   * Create an input for a schema resolver.
+   *
+   * @param systemId the system identifier
+   * @return an input
+   */
+  LSInput createInput(String systemId) {
+    LSInput input = getImplementation().createLSInput();
+    input.setSystemId(systemId);
+    return input;
+  }
+
+  private DOMImplementationLS getImplementation() {
+    DOMImplementationLS ls = implementation;
+    if (ls == null) {
+      try {
+        ls = (DOMImplementationLS) DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .getDOMImplementation().getFeature("LS", "3.0");
+      } catch (ParserConfigurationException ex) {
+        throw new GradleException(ex.getMessage(), ex);
+      }
+      implementation = ls;
+    }
+    return ls;
+  }
+
+}
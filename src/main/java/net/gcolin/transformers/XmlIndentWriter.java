@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.gcolin.transformers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Write xml with the layout of the transformers: blank text is dropped and every child node which
+ * is not a text is indented with two spaces per level, or not indented at all in compact mode.
+ *
+ * <p>
+ * Names are written as qualified names and namespace declarations as attributes, like a DOM
+ * parsed without namespace awareness.
+ * </p>
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+final class XmlIndentWriter {
+
+  private static final XMLOutputFactory FACTORY = XMLOutputFactory.newInstance();
+  static final byte[] DECLARATION =
+      "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n"
+          .getBytes(StandardCharsets.UTF_8);
+  private static final Comparator<String[]> ATTRIBUTE_ORDER = (a1, a2) -> {
+    boolean ns1 = isNamespace(a1[0]);
+    boolean ns2 = isNamespace(a2[0]);
+    if (ns1 != ns2) {
+      return ns1 ? -1 : 1;
+    }
+    return a1[0].compareTo(a2[0]);
+  };
+
+  private final Writer out;
+  private final XMLStreamWriter writer;
+  private final StringBuilder text = new StringBuilder();
+  private final Deque<boolean[]> indented = new ArrayDeque<>();
+  private final List<String[]> attributes = new ArrayList<>();
+  private final boolean indent;
+  private String pending;
+
+  /**
+   * Create a writer.
+   *
+   * @param out the output
+   * @param indent {@code false} for writing without new lines and indentation
+   * @throws IOException if an I/O error occurs
+   * @throws XMLStreamException if the writer cannot be created
+   */
+  XmlIndentWriter(OutputStream out, boolean indent) throws IOException, XMLStreamException {
+    this.indent = indent;
+    // without the new line in compact mode
+    out.write(DECLARATION, 0, indent ? DECLARATION.length : DECLARATION.length - 1);
+    // the zip stream only compresses arrays of bytes
+    this.out = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+    // the entries are written in parallel and a factory is not thread-safe
+    synchronized (FACTORY) {
+      writer = FACTORY.createXMLStreamWriter(this.out);
+    }
+  }
+
+  private static boolean isNamespace(String name) {
+    return name.equals("xmlns") || name.startsWith("xmlns:");
+  }
+
+  void startElement(String name) throws XMLStreamException {
+    beforeChild();
+    pending = name;
+    indented.push(new boolean[1]);
+  }
+
+  void attribute(String name, String value) {
+    attributes.add(new String[] {name, value});
+  }
+
+  void text(String value) {
+    text.append(value);
+  }
+
+  void cdata(String value) throws XMLStreamException {
+    beforeChild();
+    writer.writeCData(value);
+  }
+
+  void comment(String value) throws XMLStreamException {
+    beforeChild();
+    writer.writeComment(value);
+  }
+
+  void processingInstruction(String target, String data) throws XMLStreamException {
+    beforeChild();
+    if (data == null || data.isEmpty()) {
+      writer.writeProcessingInstruction(target);
+    } else {
+      writer.writeProcessingInstruction(target, data);
+    }
+  }
+
+  void endElement() throws XMLStreamException {
+    flushText();
+    boolean[] indent = indented.pop();
+    if (pending != null) {
+      writer.writeEmptyElement(pending);
+      writeAttributes();
+      pending = null;
+    } else {
+      if (indent[0]) {
+        newLine(indented.size());
+      }
+      writer.writeEndElement();
+    }
+  }
+
+  void end() throws IOException, XMLStreamException {
+    flushText();
+    if (indent) {
+      writer.writeCharacters("\n");
+    }
+    writer.close();
+    out.flush();
+  }
+
+  private void beforeChild() throws XMLStreamException {
+    flushText();
+    flushPending();
+    if (!indented.isEmpty()) {
+      newLine(indented.size());
+      indented.peek()[0] = true;
+    }
+  }
+
+  private void flushText() throws XMLStreamException {
+    if (text.length() > 0) {
+      String value = text.toString();
+      text.setLength(0);
+      if (!value.trim().isEmpty()) {
+        flushPending();
+        writer.writeCharacters(value);
+      }
+    }
+  }
+
+  private void flushPending() throws XMLStreamException {
+    if (pending != null) {
+      writer.writeStartElement(pending);
+      writeAttributes();
+      pending = null;
+    }
+  }
+
+  private void writeAttributes() throws XMLStreamException {
+    Collections.sort(attributes, ATTRIBUTE_ORDER);
+    for (String[] attribute : attributes) {
+      writer.writeAttribute(attribute[0], attribute[1]);
+    }
+    attributes.clear();
+  }
+
+  private void newLine(int level) throws XMLStreamException {
+    if (!indent) {
+      return;
+    }
+    StringBuilder str = new StringBuilder("\n");
+    for (int j = 0; j < level; j++) {
+      str.append("  ");
+    }
+    writer.writeCharacters(str.toString());
+  }
+
+}
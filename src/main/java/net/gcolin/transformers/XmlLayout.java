@@ -0,0 +1,300 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package net.gcolin.transformers;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The byte ranges of the root element of a UTF-8 xml document and of its children, found without
+ * parsing the document.
+ *
+ * <p>
+ * The scanner only looks for the tags, so the content is not checked. The documents with a
+ * DOCTYPE, another encoding or an empty root element are not supported because their bytes cannot
+ * be copied as they are in another document.
+ * </p>
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+final class XmlLayout {
+
+  private static final byte[] BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+
+  private final Map<String, int[]> extracted = new HashMap<>();
+  private String rootName;
+  private int rootStart;
+  private int contentStart;
+  private int[] body = new int[8];
+  private int bodySize;
+
+  private XmlLayout() {}
+
+  /**
+   * Scan a document.
+   *
+   * @param data the document
+   * @param names the names of the children to extract from the body, only the first child of each
+   *        name is extracted
+   * @return the layout or {@code null} if the document is not supported
+   */
+  static XmlLayout scan(byte[] data, Set<String> names) {
+    int pos = startsWith(data, 0, BOM) ? BOM.length : 0;
+    while (true) {
+      pos = skipSpaces(data, pos);
+      if (pos + 1 >= data.length || data[pos] != '<') {
+        return null;
+      }
+      if (data[pos + 1] == '?') {
+        int end = indexOf(data, pos, "?>");
+        if (end < 0 || startsWith(data, pos, "<?xml") && !isUtf8(data, pos, end)) {
+          return null;
+        }
+        pos = end + 2;
+      } else if (startsWith(data, pos, "<!--")) {
+        pos = skip(data, pos, "-->");
+      } else if (data[pos + 1] == '!') {
+        // the body may use the entities of the DOCTYPE
+        return null;
+      } else {
+        break;
+      }
+      if (pos < 0) {
+        return null;
+      }
+    }
+
+    XmlLayout layout = new XmlLayout();
+    layout.rootStart = pos;
+    layout.rootName = name(data, pos + 1);
+    pos = tagEnd(data, pos);
+    if (pos < 0 || data[pos - 2] == '/') {
+      return null;
+    }
+    layout.contentStart = pos;
+    int cut = pos;
+    int depth = 0;
+    int childStart = -1;
+    String childName = null;
+    while (pos >= 0) {
+      int lt = indexOf(data, pos, '<');
+      if (lt < 0 || lt + 1 >= data.length) {
+        return null;
+      }
+      if (startsWith(data, lt, "<!--")) {
+        pos = skip(data, lt, "-->");
+        continue;
+      } else if (startsWith(data, lt, "<![CDATA[")) {
+        pos = skip(data, lt, "]]>");
+        continue;
+      } else if (data[lt + 1] == '?') {
+        pos = skip(data, lt, "?>");
+        continue;
+      } else if (data[lt + 1] == '!') {
+        return null;
+      }
+      pos = tagEnd(data, lt);
+      if (pos < 0) {
+        return null;
+      }
+      boolean end = data[lt + 1] == '/';
+      if (end && depth == 0) {
+        layout.addBody(cut, trimEnd(data, cut, lt));
+        return layout;
+      }
+      if (depth == 0) {
+        childStart = lt;
+        childName = name(data, lt + 1);
+      }
+      if (end) {
+        depth--;
+      } else if (data[pos - 2] != '/') {
+        depth++;
+      }
+      if (depth == 0 && names.contains(childName) && !layout.extracted.containsKey(childName)) {
+        layout.extracted.put(childName, new int[] {childStart, pos});
+        layout.addBody(cut, trimEnd(data, cut, childStart));
+        cut = pos;
+      }
+    }
+    return null;
+  }
+
+  String getRootName() {
+    return rootName;
+  }
+
+  /**
+   * Get the start tag of the root element.
+   *
+   * @return the start and the end of the range
+   */
+  int[] getRootTag() {
+    return new int[] {rootStart, contentStart};
+  }
+
+  /**
+   * Get an extracted child.
+   *
+   * @param name the name of the child
+   * @return the start and the end of the range or {@code null} if there is no such child
+   */
+  int[] getExtracted(String name) {
+    return extracted.get(name);
+  }
+
+  /**
+   * Get the content of the root element without the extracted children, the spaces before the
+   * extracted children and the spaces at the end of the content.
+   *
+   * @return the start and the end of each range
+   */
+  int[] getBody() {
+    int[] ranges = new int[bodySize];
+    System.arraycopy(body, 0, ranges, 0, bodySize);
+    return ranges;
+  }
+
+  private void addBody(int start, int end) {
+    if (start < end) {
+      if (bodySize == body.length) {
+        int[] copy = new int[body.length * 2];
+        System.arraycopy(body, 0, copy, 0, bodySize);
+        body = copy;
+      }
+      body[bodySize++] = start;
+      body[bodySize++] = end;
+    }
+  }
+
+  private static boolean isUtf8(byte[] data, int start, int end) {
+    String declaration = new String(data, start, end - start, StandardCharsets.UTF_8);
+    int index = declaration.indexOf("encoding");
+    if (index < 0) {
+      return true;
+    }
+    int quote = index + "encoding".length();
+    while (quote < declaration.length() && declaration.charAt(quote) != '"'
+        && declaration.charAt(quote) != '\'') {
+      quote++;
+    }
+    int close = quote < declaration.length()
+        ? declaration.indexOf(declaration.charAt(quote), quote + 1) : -1;
+    return close > 0 && declaration.substring(quote + 1, close).equalsIgnoreCase("UTF-8");
+  }
+
+  /**
+   * Find the end of a tag, the attribute values may contain a {@code >}.
+   *
+   * @return the index after the {@code >} or -1
+   */
+  private static int tagEnd(byte[] data, int pos) {
+    byte quote = 0;
+    for (int i = pos + 1; i < data.length; i++) {
+      byte ch = data[i];
+      if (quote != 0) {
+        if (ch == quote) {
+          quote = 0;
+        }
+      } else if (ch == '"' || ch == '\'') {
+        quote = ch;
+      } else if (ch == '>') {
+        return i + 1;
+      }
+    }
+    return -1;
+  }
+
+  private static String name(byte[] data, int pos) {
+    int start = data[pos] == '/' ? pos + 1 : pos;
+    int end = start;
+    while (end < data.length && !isSpace(data[end]) && data[end] != '>' && data[end] != '/') {
+      end++;
+    }
+    return new String(data, start, end - start, StandardCharsets.UTF_8);
+  }
+
+  private static int trimEnd(byte[] data, int start, int end) {
+    while (end > start && isSpace(data[end - 1])) {
+      end--;
+    }
+    return end;
+  }
+
+  private static int skipSpaces(byte[] data, int pos) {
+    while (pos < data.length && isSpace(data[pos])) {
+      pos++;
+    }
+    return pos;
+  }
+
+  private static boolean isSpace(byte ch) {
+    return ch == ' ' || ch == '\t' || ch == '\r' || ch == '\n';
+  }
+
+  private static int skip(byte[] data, int pos, String end) {
+    int index = indexOf(data, pos, end);
+    return index < 0 ? -1 : index + end.length();
+  }
+
+  private static int indexOf(byte[] data, int pos, char ch) {
+    for (int i = pos; i < data.length; i++) {
+      if (data[i] == ch) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int indexOf(byte[] data, int pos, String str) {
+    int last = data.length - str.length();
+    for (int i = pos; i <= last; i++) {
+      if (startsWith(data, i, str)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean startsWith(byte[] data, int pos, String str) {
+    if (pos + str.length() > data.length) {
+      return false;
+    }
+    for (int i = 0; i < str.length(); i++) {
+      if (data[pos + i] != str.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean startsWith(byte[] data, int pos, byte[] prefix) {
+    if (pos + prefix.length > data.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (data[pos + i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+}
@@ -17,43 +17,82 @@ package net.gcolin.transformers;
 
 import com.github.jengelman.gradle.plugins.shadow.relocation.Relocator;
 
+import net.gcolin.transformers.TransformerMetrics.Phase;
+
+import org.apache.commons.io.IOUtils;
 import org.apache.tools.zip.ZipOutputStream;
 import org.gradle.api.GradleException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Function;
+import java.util.regex.Pattern;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 
 /**
  * Generic XML merge.
+ *
+ * <p>
+ * With a merge key, the merged elements are indexed in a hash map by the value of the key, and an
+ * element with the key of a previous element is dropped, replaces it or is merged into it, according
+ * to the precedence.
+ * </p>
  * 
  * @author Gaël COLIN
  * @since 1.0
  */
 public class XmlMergeTransformer extends DomTransformer {
 
-  private DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-  private Map<String, List<Document>> documents = new HashMap<>();
+  private static final Pattern SIMPLE_KEY = Pattern.compile("@?[A-Za-z_][A-Za-z0-9_.\\-]*");
+
+  /**
+   * The element kept when two merged elements have the same key.
+   */
+  public enum Precedence {
+    /**
+     * The element of the first jar is kept.
+     */
+    FIRST,
+    /**
+     * The element of the last jar replaces the previous one, at the place of the previous one.
+     */
+    LAST
+  }
+
+  private Map<String, List<RetainedBytes>> sources = new TreeMap<>();
+  private Map<String, List<CompletableFuture<Document>>> parsing = new HashMap<>();
   private Function<String, String> mergeXpath;
+  private String mergeXpathKey;
+  private Map<String, String> mergeXpaths = new HashMap<>();
+  private Map<String, XPathExpression> expressions = new HashMap<>();
+  private boolean streaming;
+  private String mergeKey;
+  private Precedence precedence = Precedence.FIRST;
+  private boolean deepMerge;
   private Logger logger = LoggerFactory.getLogger(this.getClass());
 
   public XmlMergeTransformer(Function<String, String> mergeXpath, List<String> patterns) {
@@ -61,63 +100,436 @@ public class XmlMergeTransformer extends DomTransformer {
     this.mergeXpath = mergeXpath;
   }
 
+  /**
+   * Set a key which changes when the merge xpath function changes, like the xpath it returns. The
+   * name of a closure or a lambda class does not change with its code, without this key the merge
+   * task is never up to date and not cached.
+   *
+   * @param mergeXpathKey a key or {@code null}
+   */
+  public void setMergeXpathKey(String mergeXpathKey) {
+    this.mergeXpathKey = mergeXpathKey;
+  }
+
+  /**
+   * Merge with StAX instead of DOM. The merge is streamed into the jar. The xpath which cannot be
+   * streamed fall back to the DOM merge.
+   *
+   * @param streaming {@code true} for the streaming merge
+   */
+  public void setStreaming(boolean streaming) {
+    this.streaming = streaming;
+  }
+
+  /**
+   * Set the key of the merged elements, an xpath relative to each element, like <code>name</code>
+   * or <code>@id</code>. The elements without key value are always appended. The keyed merge uses
+   * the DOM, the streaming option is ignored.
+   *
+   * @param mergeKey an xpath or {@code null} for appending all the elements
+   */
+  public void setMergeKey(String mergeKey) {
+    this.mergeKey = mergeKey;
+  }
+
+  /**
+   * Set the element kept when two merged elements have the same key. {@link Precedence#FIRST} by
+   * default.
+   *
+   * @param precedence the precedence
+   */
+  public void setPrecedence(Precedence precedence) {
+    this.precedence = precedence;
+  }
+
+  /**
+   * Merge the elements with the same key instead of keeping one of them. The attributes and the
+   * child elements found once in both elements are merged recursively, the precedence decides
+   * between two attributes or two text values. The other child elements are appended, unless an
+   * equal element exists.
+   *
+   * @param deepMerge {@code true} for merging the elements with the same key
+   */
+  public void setDeepMerge(boolean deepMerge) {
+    this.deepMerge = deepMerge;
+  }
+
+  @Override
+  protected void describe(Map<String, Object> settings) {
+    super.describe(settings);
+    settings.put("mergeXpath",
+        mergeXpathKey == null ? mergeXpath.getClass().getName() : mergeXpathKey);
+    settings.put("streaming", streaming);
+    settings.put("mergeKey", mergeKey);
+    settings.put("precedence", precedence);
+    settings.put("deepMerge", deepMerge);
+  }
+
+  @Override
+  protected String getUncacheableReason() {
+    Class<?> type = mergeXpath.getClass();
+    // a closure is a proxy and a lambda is synthetic, their class names are numbered at runtime
+    if (mergeXpathKey == null && (type.isSynthetic() || type.isAnonymousClass()
+        || type.isLocalClass() || Proxy.isProxyClass(type))) {
+      return "the merge xpath of " + getIncludes() + " is a closure without mergeXpathKey";
+    }
+    return null;
+  }
+
   @Override
   public void transform(String path, InputStream is, List<Relocator> relocators) {
     try {
-      Document document = factory.newDocumentBuilder().parse(is);
-      List<Document> list = documents.get(path);
+      RetainedBytes data = retain(path, relocate(path, IOUtils.toByteArray(is), relocators));
+      if (data == null) {
+        return;
+      }
+      // registered once retained, a failed resource must not leave an empty document
+      List<RetainedBytes> list = sources.get(path);
       if (list == null) {
         list = new ArrayList<>();
-        documents.put(path, list);
+        sources.put(path, list);
+      }
+      list.add(data);
+      // a single document is copied as is, the parsing starts with the second one
+      if (isParallel() && !streaming && list.size() > 1) {
+        List<CompletableFuture<Document>> futures = parsing.get(path);
+        if (futures == null) {
+          futures = new ArrayList<>();
+          parsing.put(path, futures);
+          RetainedBytes first = list.get(0);
+          futures.add(parseAsync(() -> parse(first)));
+        }
+        futures.add(parseAsync(() -> parse(data)));
       }
-      list.add(document);
-    } catch (SAXException | IOException | ParserConfigurationException ex) {
+    } catch (IOException ex) {
       throw new GradleException(ex.getMessage(), ex);
     }
   }
 
+  @Override
+  protected List<RetainedBytes> getSources(String path) {
+    List<RetainedBytes> list = sources.get(path);
+    return list == null ? Collections.<RetainedBytes>emptyList() : list;
+  }
+
   @Override
   public boolean hasTransformedResource() {
-    return !documents.isEmpty();
+    return !sources.isEmpty();
   }
 
   @Override
   public void modifyOutputStream(ZipOutputStream jos) {
-    XPath xpath = XPathFactory.newInstance().newXPath();
-    for (Entry<String, List<Document>> entry : documents.entrySet()) {
-      Document root = entry.getValue().get(0);
-      if (entry.getValue().size() > 1) {
-        String xpathExpression = mergeXpath.apply(entry.getKey());
-        logger.info("assemble {} with xpath {}", entry.getKey(), xpathExpression);
-        try {
-          if (xpathExpression != null) {
-            XPathExpression expression = xpath.compile(xpathExpression);
-            Node append = ((NodeList) expression.evaluate(root, XPathConstants.NODESET)).item(0)
-                .getParentNode();
-            for (int i = 1; i < entry.getValue().size(); i++) {
-              Document document = entry.getValue().get(i);
-              NodeList elements = (NodeList) expression.evaluate(document, XPathConstants.NODESET);
-              for (int j = 0; j < elements.getLength(); j++) {
-                append.appendChild(root.adoptNode(elements.item(j).cloneNode(true)));
-              }
+    try {
+      // the function is called by this thread, the entries may be rendered in parallel
+      for (Entry<String, List<RetainedBytes>> entry : sources.entrySet()) {
+        if (entry.getValue().size() > 1) {
+          getMergeXpath(entry.getKey());
+        }
+      }
+      writeEntries(jos, new ArrayList<>(sources.keySet()), this::render);
+    } catch (IOException ex) {
+      throw new GradleException(ex.getMessage(), ex);
+    } finally {
+      sources.clear();
+      parsing.clear();
+      releaseRetained();
+    }
+    logger.debug("{}", getXmlPool());
+    writeReport();
+  }
+
+  private void render(String path, OutputStream out) throws IOException {
+    List<RetainedBytes> list = sources.get(path);
+    if (list.size() == 1) {
+      copy(path, list, out);
+      return;
+    }
+    String xpathExpression = mergeXpaths.get(path);
+    if (streaming && mergeKey == null && StaxXmlMerger.supports(xpathExpression)) {
+      logger.info("stream {} with xpath {}", path, xpathExpression);
+      TransformerMetrics.Timer timer = getMetrics().start(Phase.MERGE);
+      try {
+        new StaxXmlMerger(xpathExpression, isCompact(), getCatalog()).merge(list, out);
+      } catch (XMLStreamException ex) {
+        throw new GradleException(ex.getMessage(), ex);
+      } finally {
+        timer.stop();
+      }
+    } else {
+      write(merge(path, parse(path, list), xpathExpression), out);
+    }
+  }
+
+  /**
+   * Copy a document found once without building a DOM. It is scanned with StAX, so a malformed
+   * document fails, then copied byte for byte. In compact mode, it is written again by StAX
+   * without indentation.
+   */
+  private void copy(String path, List<RetainedBytes> list, OutputStream out) throws IOException {
+    // without xpath, a lone document is written as is
+    StaxXmlMerger merger = new StaxXmlMerger(null, isCompact(), getCatalog());
+    TransformerMetrics.Timer timer = getMetrics().start(isCompact() ? Phase.WRITE : Phase.PARSE);
+    try {
+      if (isCompact()) {
+        merger.merge(list, out);
+        return;
+      }
+      merger.check(list.get(0));
+    } catch (XMLStreamException ex) {
+      throw new GradleException("invalid " + path + ": " + ex.getMessage(), ex);
+    } finally {
+      timer.stop();
+    }
+    timer = getMetrics().start(Phase.WRITE);
+    try (InputStream in = list.get(0).openStream()) {
+      IOUtils.copy(in, out);
+    } finally {
+      timer.stop();
+    }
+  }
+
+  /**
+   * Get the merge xpath of a path. The function is called once per path.
+   */
+  private String getMergeXpath(String path) {
+    if (mergeXpaths.containsKey(path)) {
+      return mergeXpaths.get(path);
+    }
+    String expression = mergeXpath.apply(path);
+    mergeXpaths.put(path, expression);
+    return expression;
+  }
+
+  /**
+   * Compile an xpath. The compiled expressions are kept for the next merges, except in parallel
+   * mode because an expression cannot be evaluated by several threads.
+   */
+  private XPathExpression compile(String expression) throws XPathExpressionException {
+    XPathExpression compiled = isParallel() ? null : expressions.get(expression);
+    if (compiled == null) {
+      XPath xpath = getXmlPool().borrowXPath();
+      try {
+        compiled = xpath.compile(expression);
+      } finally {
+        getXmlPool().release(xpath);
+      }
+      if (!isParallel()) {
+        expressions.put(expression, compiled);
+      }
+    }
+    return compiled;
+  }
+
+  private List<Document> parse(String path, List<RetainedBytes> list) {
+    List<CompletableFuture<Document>> futures = parsing.get(path);
+    List<Document> documents = new ArrayList<>(list.size());
+    if (futures != null) {
+      for (CompletableFuture<Document> future : futures) {
+        documents.add(join(future));
+      }
+      return documents;
+    }
+    for (RetainedBytes source : list) {
+      try {
+        documents.add(parse(source));
+      } catch (SAXException | IOException ex) {
+        throw new GradleException(ex.getMessage(), ex);
+      }
+    }
+    return documents;
+  }
+
+  private Document merge(String path, List<Document> documents, String xpathExpression) {
+    Document root = documents.get(0);
+    logger.info("assemble {} with xpath {}", path, xpathExpression);
+    TransformerMetrics.Timer timer = getMetrics().start(Phase.MERGE);
+    try {
+      KeyIndex index = mergeKey == null ? null : new KeyIndex(root);
+      if (xpathExpression != null) {
+        XPathExpression expression = compile(xpathExpression);
+        NodeList first = (NodeList) expression.evaluate(root, XPathConstants.NODESET);
+        Node append = first.item(0).getParentNode();
+        if (index != null) {
+          for (Node node : toArray(first)) {
+            index.add(node, null);
+          }
+        }
+        for (int i = 1; i < documents.size(); i++) {
+          Document document = documents.get(i);
+          // the elements are moved, so the list is copied before changing the document
+          for (Node node : toArray(
+              (NodeList) expression.evaluate(document, XPathConstants.NODESET))) {
+            if (index == null) {
+              append.appendChild(root.adoptNode(node));
+            } else {
+              index.add(node, append);
             }
-          } else {
-            Node append = root.getDocumentElement();
-            for (int i = 1; i < entry.getValue().size(); i++) {
-              NodeList elements = entry.getValue().get(i).getDocumentElement().getChildNodes();
-              for (int j = 0; j < elements.getLength(); j++) {
-                append.appendChild(root.adoptNode(elements.item(j).cloneNode(true)));
-              }
+          }
+        }
+      } else {
+        Node append = root.getDocumentElement();
+        if (index != null) {
+          for (Node node : toArray(append.getChildNodes())) {
+            index.add(node, null);
+          }
+        }
+        for (int i = 1; i < documents.size(); i++) {
+          Node child = documents.get(i).getDocumentElement().getFirstChild();
+          while (child != null) {
+            Node next = child.getNextSibling();
+            if (index == null) {
+              append.appendChild(root.adoptNode(child));
+            } else {
+              index.add(child, append);
             }
+            child = next;
           }
-          write(root, jos, entry.getKey());
-        } catch (XPathExpressionException ex) {
-          throw new GradleException(ex.getMessage(), ex);
         }
+      }
+    } catch (XPathExpressionException ex) {
+      throw new GradleException(ex.getMessage(), ex);
+    } finally {
+      timer.stop();
+    }
+    return root;
+  }
+
+  private static Node[] toArray(NodeList list) {
+    Node[] nodes = new Node[list.getLength()];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = list.item(i);
+    }
+    return nodes;
+  }
+
+  private static List<Element> childElements(Node node) {
+    List<Element> elements = new ArrayList<>();
+    for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+      if (child.getNodeType() == Node.ELEMENT_NODE) {
+        elements.add((Element) child);
+      }
+    }
+    return elements;
+  }
+
+  private static Element single(List<Element> elements, String name) {
+    Element found = null;
+    for (Element element : elements) {
+      if (element.getNodeName().equals(name)) {
+        if (found != null) {
+          return null;
+        }
+        found = element;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Merge an element into the element with the same key. The source is already adopted.
+   */
+  private void mergeDeep(Element target, Element source) {
+    NamedNodeMap attributes = source.getAttributes();
+    for (int i = 0; i < attributes.getLength(); i++) {
+      Attr attribute = (Attr) attributes.item(i);
+      if (precedence == Precedence.LAST || !target.hasAttribute(attribute.getName())) {
+        target.setAttributeNode((Attr) attribute.cloneNode(true));
+      }
+    }
+    List<Element> targetChildren = childElements(target);
+    List<Element> sourceChildren = childElements(source);
+    if (targetChildren.isEmpty() && sourceChildren.isEmpty()) {
+      if (precedence == Precedence.LAST) {
+        while (target.getFirstChild() != null) {
+          target.removeChild(target.getFirstChild());
+        }
+        while (source.getFirstChild() != null) {
+          target.appendChild(source.getFirstChild());
+        }
+      }
+      return;
+    }
+    for (Element child : sourceChildren) {
+      Element same = single(targetChildren, child.getNodeName());
+      if (same != null && single(sourceChildren, child.getNodeName()) != null) {
+        mergeDeep(same, child);
+      } else if (targetChildren.stream().noneMatch(x -> x.isEqualNode(child))) {
+        target.appendChild(child);
+      }
+    }
+  }
+
+  /**
+   * The merged elements of a document by key.
+   */
+  private class KeyIndex {
+
+    private final Document root;
+    private final XPathExpression expression;
+    private final Map<String, Node> elements = new HashMap<>();
+
+    KeyIndex(Document root) throws XPathExpressionException {
+      this.root = root;
+      expression = SIMPLE_KEY.matcher(mergeKey).matches() ? null : compile(mergeKey);
+    }
+
+    /**
+     * Index a merged node.
+     *
+     * @param node a node of the first document or of another document
+     * @param append the parent of the merged nodes or {@code null} for a node of the first
+     *        document, which is already in place
+     */
+    void add(Node node, Node append) throws XPathExpressionException {
+      String key = key(node);
+      Node adopted = append == null ? node : root.adoptNode(node);
+      Node previous = key == null ? null : elements.get(key);
+      if (previous == null) {
+        if (key != null) {
+          elements.put(key, adopted);
+        }
+        if (append != null) {
+          append.appendChild(adopted);
+        }
+        return;
+      }
+      if (append == null) {
+        adopted.getParentNode().removeChild(adopted);
+      }
+      logger.debug("merge the elements with the key {}", key);
+      if (deepMerge) {
+        mergeDeep((Element) previous, (Element) adopted);
+      } else if (precedence == Precedence.LAST) {
+        previous.getParentNode().replaceChild(adopted, previous);
+        elements.put(key, adopted);
+      }
+    }
+
+    private String key(Node node) throws XPathExpressionException {
+      if (node.getNodeType() != Node.ELEMENT_NODE) {
+        return null;
+      }
+      String value;
+      if (expression != null) {
+        value = expression.evaluate(node);
+      } else if (mergeKey.charAt(0) == '@') {
+        value = ((Element) node).getAttribute(mergeKey.substring(1));
       } else {
-        write(root, jos, entry.getKey());
+        Element child = null;
+        for (Element element : childElements(node)) {
+          if (element.getNodeName().equals(mergeKey)) {
+            child = element;
+            break;
+          }
+        }
+        value = child == null ? null : child.getTextContent();
+      }
+      if (value == null || value.trim().isEmpty()) {
+        return null;
       }
+      return value.trim();
     }
+
   }
 
 }
@@ -0,0 +1,262 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.gcolin.transformers;
+
+import org.gradle.api.GradleException;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathFactory;
+
+/**
+ * A thread-safe pool of preconfigured {@link DocumentBuilder} and {@link XPath}.
+ *
+ * <p>
+ * The factories are looked up once. A borrowed instance must be released after use, it is reset
+ * before going back in the pool.
+ * </p>
+ *
+ * <p>
+ * The document builders do not load the external DTD and resolve the other external entities with
+ * {@link XmlCatalog}, so the parsing never uses the network.
+ * </p>
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+public final class XmlPool {
+
+  private static final String LOAD_EXTERNAL_DTD =
+      "http://apache.org/xml/features/nonvalidating/load-external-dtd";
+  private static final XmlPool SHARED = new XmlPool();
+  private static final XmlPool LENIENT = new XmlPool(XmlCatalog.lenient());
+
+  private final XmlCatalog catalog;
+  private final DocumentBuilderFactory builderFactory = DocumentBuilderFactory.newInstance();
+  private final XPathFactory xpathFactory = XPathFactory.newInstance();
+  private final Pool<DocumentBuilder> builders =
+      new Pool<>(this::createDocumentBuilder, this::resetDocumentBuilder);
+  private final Pool<XPath> xpaths = new Pool<>(this::createXPath, XPath::reset);
+
+  /**
+   * Create a pool. Prefer {@link #shared()}.
+   */
+  public XmlPool() {
+    this(XmlCatalog.shared());
+  }
+
+  /**
+   * Create a pool which resolves the external entities with a catalog.
+   *
+   * @param catalog the catalog of the document builders
+   */
+  public XmlPool(XmlCatalog catalog) {
+    this.catalog = catalog;
+    try {
+      builderFactory.setFeature(LOAD_EXTERNAL_DTD, false);
+    } catch (ParserConfigurationException ex) {
+      // not Xerces, the external DTD is resolved with the catalog
+    }
+  }
+
+  /**
+   * Get the pool shared by all the transformers.
+   *
+   * @return the shared pool
+   */
+  public static XmlPool shared() {
+    return SHARED;
+  }
+
+  /**
+   * Get the pool shared by the transformers which read the unknown external entities as empty.
+   *
+   * @return the shared pool with the {@link XmlCatalog#lenient()} catalog
+   */
+  public static XmlPool lenient() {
+    return LENIENT;
+  }
+
+  public DocumentBuilder borrowDocumentBuilder() {
+    return builders.borrow();
+  }
+
+  public void release(DocumentBuilder builder) {
+    builders.release(builder);
+  }
+
+  public XPath borrowXPath() {
+    return xpaths.borrow();
+  }
+
+  public void release(XPath xpath) {
+    xpaths.release(xpath);
+  }
+
+  /**
+   * Parse a document with a pooled {@link DocumentBuilder}.
+   *
+   * @param in the xml
+   * @return the document
+   * @throws IOException if the stream cannot be read
+   * @throws SAXException if the xml is not well formed
+   */
+  public Document parse(InputStream in) throws IOException, SAXException {
+    DocumentBuilder builder = borrowDocumentBuilder();
+    try {
+      return builder.parse(in);
+    } finally {
+      release(builder);
+    }
+  }
+
+  /**
+   * Create an empty document with a pooled {@link DocumentBuilder}.
+   *
+   * @return an empty document
+   */
+  public Document newDocument() {
+    DocumentBuilder builder = borrowDocumentBuilder();
+    try {
+      return builder.newDocument();
+    } finally {
+      release(builder);
+    }
+  }
+
+  public Counter getDocumentBuilderCounter() {
+    return builders.counter;
+  }
+
+  public Counter getXPathCounter() {
+    return xpaths.counter;
+  }
+
+  private DocumentBuilder createDocumentBuilder() {
+    try {
+      DocumentBuilder builder;
+      synchronized (builderFactory) {
+        builder = builderFactory.newDocumentBuilder();
+      }
+      builder.setEntityResolver(catalog);
+      return builder;
+    } catch (ParserConfigurationException ex) {
+      throw new GradleException(ex.getMessage(), ex);
+    }
+  }
+
+  private void resetDocumentBuilder(DocumentBuilder builder) {
+    // the reset removes the entity resolver
+    builder.reset();
+    builder.setEntityResolver(catalog);
+  }
+
+  private XPath createXPath() {
+    synchronized (xpathFactory) {
+      return xpathFactory.newXPath();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "XmlPool{documentBuilders=" + builders.counter + ", xpaths=" + xpaths.counter + '}';
+  }
+
+  /**
+   * Usage of a pool.
+   */
+  public static class Counter {
+
+    private final AtomicLong borrowed = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+
+    public long getBorrowed() {
+      return borrowed.get();
+    }
+
+    public long getCreated() {
+      return created.get();
+    }
+
+    /**
+     * Get the part of the borrows served by a pooled instance.
+     *
+     * @return a rate between 0 and 1
+     */
+    public double getReuseRate() {
+      long nb = borrowed.get();
+      return nb == 0 ? 0 : (double) (nb - created.get()) / nb;
+    }
+
+    @Override
+    public String toString() {
+      return "{borrowed=" + borrowed + ", created=" + created + ", reuse="
+          + Math.round(getReuseRate() * 100) + "%}";
+    }
+
+  }
+
+  private static class Pool<T> {
+
+    private static final int MAX_IDLE = Runtime.getRuntime().availableProcessors() * 2;
+
+    private final Queue<T> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleSize = new AtomicInteger();
+    private final Counter counter = new Counter();
+    private final Supplier<T> factory;
+    private final Consumer<T> reset;
+
+    Pool(Supplier<T> factory, Consumer<T> reset) {
+      this.factory = factory;
+      this.reset = reset;
+    }
+
+    T borrow() {
+      counter.borrowed.incrementAndGet();
+      T instance = idle.poll();
+      if (instance == null) {
+        counter.created.incrementAndGet();
+        return factory.get();
+      }
+      idleSize.decrementAndGet();
+      return instance;
+    }
+
+    void release(T instance) {
+      reset.accept(instance);
+      if (idleSize.incrementAndGet() <= MAX_IDLE) {
+        idle.offer(instance);
+      } else {
+        idleSize.decrementAndGet();
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.gcolin.transformers.test;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import net.gcolin.transformers.LineMergeTransformer;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.zip.ZipOutputStream;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * A test.
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+public class LineMergeTransformerTest {
+
+  private LineMergeTransformer transformer;
+  private ZipOutputStream jos;
+  private ByteArrayOutputStream bout;
+
+  @Before
+  public void before() throws IOException {
+    transformer = new LineMergeTransformer(
+        Arrays.asList("META-INF/spring.factories", "META-INF/services/**"));
+    jos = mock(ZipOutputStream.class);
+    bout = new ByteArrayOutputStream();
+    doAnswer(invocation -> {
+      bout.write((Integer) invocation.getArguments()[0]);
+      return null;
+    }).when(jos).write(anyInt());
+    doAnswer(invocation -> {
+      bout.write((byte[]) invocation.getArguments()[0]);
+      return null;
+    }).when(jos).write(anyObject());
+    doAnswer(invocation -> {
+      bout.write((byte[]) invocation.getArguments()[0], (Integer) invocation.getArguments()[1],
+          (Integer) invocation.getArguments()[2]);
+      return null;
+    }).when(jos).write(anyObject(), anyInt(), anyInt());
+  }
+
+  @Test
+  public void testProperties() throws IOException {
+    load("META-INF/spring.factories", "spring1.factories");
+    load("META-INF/spring.factories", "spring2.factories");
+    load("META-INF/spring.factories", "spring1.factories");
+    Assert.assertTrue(transformer.hasTransformedResource());
+    transformer.modifyOutputStream(jos);
+    eq("springResult.factories");
+  }
+
+  @Test
+  public void testSingleProperties() throws IOException {
+    load("messages.properties", "messages1.properties");
+    transformer.modifyOutputStream(jos);
+    eq("messagesResult.properties");
+  }
+
+  @Test
+  public void testRepeatedProperties() throws IOException {
+    transformer.setListKeys(Arrays.asList("list"));
+    load("messages.properties", "messages1.properties");
+    load("messages.properties", "messages2.properties");
+    transformer.modifyOutputStream(jos);
+    eq("messagesMerged.properties");
+  }
+
+  @Test
+  public void testContinuationAtEnd() throws IOException {
+    String content = "b=x\\\n  y\na=value\\";
+    Properties properties = new Properties();
+    properties.load(new StringReader(content));
+    Assert.assertEquals("value", properties.getProperty("a"));
+    transformer.transform("messages.properties",
+        new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), null);
+    transformer.modifyOutputStream(jos);
+    Assert.assertEquals("a=value\nb=xy\n", new String(bout.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testLines() throws IOException {
+    load("META-INF/services/net.gcolin.Service", "service1.txt");
+    load("META-INF/services/net.gcolin.Service", "service2.txt");
+    Assert.assertTrue(transformer.hasTransformedResource());
+    transformer.modifyOutputStream(jos);
+    eq("serviceResult.txt");
+  }
+
+  private void load(String path, String resource) throws IOException {
+    try (InputStream in = this.getClass().getClassLoader().getResourceAsStream(resource)) {
+      transformer.transform(path, in, null);
+    }
+  }
+
+  private void eq(String path) throws IOException {
+    try (InputStream in = this.getClass().getClassLoader().getResourceAsStream(path)) {
+      Assert.assertEquals(new String(IOUtils.toByteArray(in), StandardCharsets.UTF_8),
+          new String(bout.toByteArray(), StandardCharsets.UTF_8));
+    }
+  }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package net.gcolin.transformers.test;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import com.github.jengelman.gradle.plugins.shadow.relocation.Relocator;
+import com.github.jengelman.gradle.plugins.shadow.relocation.SimpleRelocator;
+
+import net.gcolin.transformers.MergeResourcesTask;
+import net.gcolin.transformers.MergedResourcesTransformer;
+import net.gcolin.transformers.WebFragmentTransformer;
+import net.gcolin.transformers.XmlMergeTransformer;
+
+import org.apache.tools.zip.ZipEntry;
+import org.apache.tools.zip.ZipOutputStream;
+import org.gradle.api.Project;
+import org.gradle.api.file.FileTreeElement;
+import org.gradle.api.file.RelativePath;
+import org.gradle.testfixtures.ProjectBuilder;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A test.
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+public class MergedResourcesTransformerTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testCopy() throws IOException {
+    Project project = ProjectBuilder.builder().withProjectDir(folder.newFolder("project")).build();
+    MergeResourcesTask task = project.getTasks().create("merge", MergeResourcesTask.class);
+    task.transform(new WebFragmentTransformer());
+    File merged = new File(task.getDestinationDir(), "META-INF/web-fragment.xml");
+    Assert.assertTrue(merged.getParentFile().mkdirs());
+    Files.write(merged.toPath(), "<web-fragment/>".getBytes(StandardCharsets.UTF_8));
+
+    MergedResourcesTransformer transformer = new MergedResourcesTransformer(task);
+    Assert.assertTrue(transformer.canTransformResource(element("META-INF/web-fragment.xml")));
+    Assert.assertFalse(transformer.canTransformResource(element("META-INF/beans.xml")));
+    Assert.assertTrue(transformer.hasTransformedResource());
+
+    ZipOutputStream jos = mock(ZipOutputStream.class);
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    doAnswer(invocation -> {
+      bout.write((byte[]) invocation.getArguments()[0], (Integer) invocation.getArguments()[1],
+          (Integer) invocation.getArguments()[2]);
+      return null;
+    }).when(jos).write(anyObject(), anyInt(), anyInt());
+    transformer.modifyOutputStream(jos);
+    ArgumentCaptor<ZipEntry> entry = ArgumentCaptor.forClass(ZipEntry.class);
+    verify(jos).putNextEntry(entry.capture());
+    Assert.assertEquals("META-INF/web-fragment.xml", entry.getValue().getName());
+    Assert.assertEquals("<web-fragment/>", new String(bout.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testRelocate() throws IOException {
+    Project project = ProjectBuilder.builder().withProjectDir(folder.newFolder("project")).build();
+    MergeResourcesTask task = project.getTasks().create("merge", MergeResourcesTask.class);
+    WebFragmentTransformer owner = new WebFragmentTransformer();
+    task.transform(owner);
+    File merged = new File(task.getDestinationDir(), "META-INF/web-fragment.xml");
+    Assert.assertTrue(merged.getParentFile().mkdirs());
+    String xml = "<web-fragment><listener><listener-class>org.foo.Listener</listener-class>"
+        + "</listener></web-fragment>";
+    Files.write(merged.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+
+    List<Relocator> relocators =
+        Arrays.asList(new SimpleRelocator("org.foo", "shaded.org.foo", null, null));
+    MergedResourcesTransformer transformer = new MergedResourcesTransformer(task);
+    transformer.transform("META-INF/web-fragment.xml", null, relocators);
+    Assert.assertEquals(xml.replace("org.foo", "shaded.org.foo"), write(transformer));
+
+    owner.setRelocate(false);
+    Assert.assertEquals(xml, write(transformer));
+  }
+
+  @Test
+  public void testMergeXpathKey() throws IOException {
+    Project project = ProjectBuilder.builder().withProjectDir(folder.newFolder("project")).build();
+    MergeResourcesTask task = project.getTasks().create("merge", MergeResourcesTask.class);
+    XmlMergeTransformer transformer =
+        new XmlMergeTransformer(path -> "/caches/cache", Arrays.asList("cacheconfig.xml"));
+    task.transform(transformer);
+    Assert.assertFalse(task.getSettings().get(0).contains("mergeXpath=/caches/cache"));
+    transformer.setMergeXpathKey("/caches/cache");
+    Assert.assertTrue(task.getSettings().get(0), task.getSettings().get(0)
+        .contains("mergeXpath=/caches/cache"));
+  }
+
+  private static String write(MergedResourcesTransformer transformer) throws IOException {
+    ZipOutputStream jos = mock(ZipOutputStream.class);
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    doAnswer(invocation -> {
+      bout.write((byte[]) invocation.getArguments()[0], (Integer) invocation.getArguments()[1],
+          (Integer) invocation.getArguments()[2]);
+      return null;
+    }).when(jos).write(anyObject(), anyInt(), anyInt());
+    transformer.modifyOutputStream(jos);
+    return new String(bout.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private static FileTreeElement element(String path) {
+    FileTreeElement element = mock(FileTreeElement.class);
+    doAnswer(invocation -> path).when(element).getPath();
+    doAnswer(invocation -> RelativePath.parse(true, path)).when(element).getRelativePath();
+    return element;
+  }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.gcolin.transformers.test;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import net.gcolin.transformers.OrderedTransformer;
+
+import org.apache.tools.zip.ZipOutputStream;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A test.
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+public class OrderedTransformerTest {
+
+  private OrderedTransformer transformer;
+  private ZipOutputStream jos;
+  private ByteArrayOutputStream bout;
+
+  @Before
+  public void before() throws IOException {
+    transformer = new OrderedTransformer(Arrays.asList("META-INF/resources/*.txt"));
+    jos = mock(ZipOutputStream.class);
+    bout = new ByteArrayOutputStream();
+    doAnswer(invocation -> {
+      bout.write((Integer) invocation.getArguments()[0]);
+      return null;
+    }).when(jos).write(anyInt());
+    doAnswer(invocation -> {
+      bout.write((byte[]) invocation.getArguments()[0]);
+      return null;
+    }).when(jos).write(anyObject());
+    doAnswer(invocation -> {
+      bout.write((byte[]) invocation.getArguments()[0], (Integer) invocation.getArguments()[1],
+          (Integer) invocation.getArguments()[2]);
+      return null;
+    }).when(jos).write(anyObject(), anyInt(), anyInt());
+  }
+
+  @Test
+  public void testLines() throws IOException {
+    load("b\r\nsecond\r\n");
+    load("a\r\nfirst");
+    transformer.modifyOutputStream(jos);
+    Assert.assertEquals("a\nfirst\nb\nsecond\n", new String(bout.toByteArray(),
+        StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testRaw() throws IOException {
+    transformer.setRaw(true);
+    load("c\r\nthird\r\n");
+    load("b\r\nsecond");
+    load("a\r\nfirst\r\n");
+    transformer.modifyOutputStream(jos);
+    // ordered by first line, the CRLF kept and a new line added at the end of the second file
+    Assert.assertEquals("a\r\nfirst\r\nb\r\nsecond\nc\r\nthird\r\n",
+        new String(bout.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  private void load(String content) {
+    transformer.transform("META-INF/resources/list.txt",
+        new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), null);
+  }
+
+}
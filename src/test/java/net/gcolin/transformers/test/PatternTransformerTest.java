@@ -0,0 +1,264 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.gcolin.transformers.test;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.github.jengelman.gradle.plugins.shadow.relocation.Relocator;
+
+import net.gcolin.transformers.OrderedTransformer;
+import net.gcolin.transformers.PatternTransformer;
+import net.gcolin.transformers.RetainedBytes;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.zip.ZipOutputStream;
+import org.gradle.api.file.FileTreeElement;
+import org.gradle.api.file.RelativePath;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A test.
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+public class PatternTransformerTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testLiteral() {
+    OrderedTransformer transformer =
+        new OrderedTransformer(Arrays.asList("META-INF/services/a.Service"));
+    Assert.assertTrue(transformer.canTransformResource(file("META-INF/services/a.Service")));
+    Assert.assertFalse(transformer.canTransformResource(file("META-INF/services/b.Service")));
+    Assert.assertFalse(transformer.canTransformResource(file("x/META-INF/services/a.Service")));
+  }
+
+  @Test
+  public void testSuffix() {
+    OrderedTransformer transformer =
+        new OrderedTransformer(Arrays.asList("**/META-INF/web-fragment.xml"));
+    Assert.assertTrue(transformer.canTransformResource(file("META-INF/web-fragment.xml")));
+    Assert.assertTrue(transformer.canTransformResource(file("a/b/META-INF/web-fragment.xml")));
+    Assert.assertFalse(transformer.canTransformResource(file("a/bMETA-INF/web-fragment.xml")));
+    Assert.assertFalse(transformer.canTransformResource(file("META-INF/web-fragment.xml.bak")));
+  }
+
+  @Test
+  public void testWildcard() {
+    OrderedTransformer transformer =
+        new OrderedTransformer(Arrays.asList("META-INF/beans.xml", "META-INF/*.txt"));
+    Assert.assertTrue(transformer.canTransformResource(file("META-INF/beans.xml")));
+    Assert.assertTrue(transformer.canTransformResource(file("META-INF/a.txt")));
+    Assert.assertFalse(transformer.canTransformResource(file("META-INF/a/b.txt")));
+  }
+
+  @Test
+  public void testExclude() {
+    OrderedTransformer transformer =
+        new OrderedTransformer(Arrays.asList("**/META-INF/web-fragment.xml"));
+    Assert.assertTrue(transformer.canTransformResource(file("a/META-INF/web-fragment.xml")));
+    transformer.exclude("a/META-INF/web-fragment.xml");
+    Assert.assertFalse(transformer.canTransformResource(file("a/META-INF/web-fragment.xml")));
+    Assert.assertTrue(transformer.canTransformResource(file("b/META-INF/web-fragment.xml")));
+    transformer.exclude("c/**");
+    Assert.assertFalse(transformer.canTransformResource(file("c/META-INF/web-fragment.xml")));
+    Assert.assertTrue(transformer.canTransformResource(file("b/META-INF/web-fragment.xml")));
+  }
+
+  @Test
+  public void testSpillNoBudget() throws IOException {
+    File spill = folder.newFolder("spill");
+    Retaining transformer = new Retaining();
+    transformer.setMemoryBudget(0);
+    transformer.setSpillDirectory(spill);
+    byte[][] data = {bytes(10, 1), bytes(0, 2), bytes(5000, 3)};
+    for (byte[] item : data) {
+      transformer.keep(item);
+    }
+    transformer.check(data);
+    Assert.assertEquals(5010, transformer.getMetrics().getSpilledBytes());
+    Assert.assertEquals(1, spill.list().length);
+    transformer.release();
+    Assert.assertEquals(0, spill.list().length);
+  }
+
+  @Test
+  public void testSpillTinyBudget() throws IOException {
+    File spill = folder.newFolder("spill");
+    Retaining transformer = new Retaining();
+    transformer.setMemoryBudget(16);
+    transformer.setSpillDirectory(spill);
+    byte[][] data = {bytes(10, 1), bytes(10, 2), bytes(6, 3), bytes(20, 4)};
+    for (byte[] item : data) {
+      transformer.keep(item);
+    }
+    transformer.check(data);
+    // the first and the third on the heap
+    Assert.assertEquals(30, transformer.getMetrics().getSpilledBytes());
+    transformer.release();
+    Assert.assertEquals(0, spill.list().length);
+  }
+
+  @Test
+  public void testReproducibleJar() throws IOException {
+    long time = new GregorianCalendar(1980, Calendar.FEBRUARY, 1).getTimeInMillis();
+    for (boolean parallel : new boolean[] {false, true}) {
+      OrderedTransformer transformer = new OrderedTransformer(Arrays.asList("**/*.txt"));
+      transformer.setReproducible(true);
+      transformer.setParallel(parallel);
+      for (String path : Arrays.asList("b.txt", "a.txt")) {
+        transformer.transform(path,
+            new ByteArrayInputStream(path.getBytes(StandardCharsets.UTF_8)), null);
+      }
+      File jar = folder.newFile("reproducible-" + parallel + ".jar");
+      try (ZipOutputStream jos = new ZipOutputStream(jar)) {
+        transformer.modifyOutputStream(jos);
+      }
+      try (ZipFile zip = new ZipFile(jar)) {
+        List<String> names = new ArrayList<>();
+        for (ZipEntry entry : Collections.list(zip.entries())) {
+          names.add(entry.getName());
+          Assert.assertEquals(entry.getName(), time, entry.getTime());
+        }
+        Assert.assertEquals(Arrays.asList("a.txt", "b.txt"), names);
+      }
+    }
+  }
+
+  @Test
+  public void testCompressionJar() throws IOException {
+    byte[] data = new byte[4096];
+    Arrays.fill(data, (byte) 'a');
+    for (boolean parallel : new boolean[] {false, true}) {
+      OrderedTransformer transformer = new OrderedTransformer(Arrays.asList("**"));
+      transformer.setParallel(parallel);
+      transformer.store("META-INF/*.xml");
+      transformer.compress("**/*.txt", Deflater.NO_COMPRESSION);
+      for (String path : Arrays.asList("META-INF/a.xml", "b/c.txt", "d.properties")) {
+        transformer.transform(path, new ByteArrayInputStream(data), null);
+      }
+      File jar = folder.newFile("compression-" + parallel + ".jar");
+      try (ZipOutputStream jos = new ZipOutputStream(jar)) {
+        transformer.modifyOutputStream(jos);
+        // the level of the jar is set back for the next entries
+        jos.putNextEntry(new org.apache.tools.zip.ZipEntry("e.properties"));
+        jos.write(data);
+        jos.closeEntry();
+      }
+      try (ZipFile zip = new ZipFile(jar)) {
+        ZipEntry stored = zip.getEntry("META-INF/a.xml");
+        Assert.assertEquals(ZipEntry.STORED, stored.getMethod());
+        Assert.assertEquals(stored.getSize(), stored.getCompressedSize());
+        ZipEntry level0 = zip.getEntry("b/c.txt");
+        Assert.assertEquals(ZipEntry.DEFLATED, level0.getMethod());
+        Assert.assertTrue(level0.getCompressedSize() > level0.getSize());
+        for (String path : Arrays.asList("d.properties", "e.properties")) {
+          ZipEntry deflated = zip.getEntry(path);
+          Assert.assertEquals(ZipEntry.DEFLATED, deflated.getMethod());
+          Assert.assertTrue(path, deflated.getCompressedSize() < data.length / 10);
+        }
+        for (ZipEntry entry : Collections.list(zip.entries())) {
+          try (InputStream in = zip.getInputStream(entry)) {
+            Assert.assertEquals(entry.getName(), entry.getSize(), IOUtils.toByteArray(in).length);
+          }
+        }
+      }
+    }
+  }
+
+  private static byte[] bytes(int size, int seed) {
+    byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte) (i * 31 + seed);
+    }
+    return data;
+  }
+
+  private FileTreeElement file(String path) {
+    FileTreeElement element = mock(FileTreeElement.class);
+    when(element.getPath()).thenReturn(path);
+    when(element.getName()).thenReturn(path.substring(path.lastIndexOf('/') + 1));
+    when(element.getRelativePath()).thenReturn(RelativePath.parse(true, path));
+    return element;
+  }
+
+  /**
+   * A transformer which only retains resources.
+   */
+  private static class Retaining extends PatternTransformer {
+
+    private final List<RetainedBytes> retained = new ArrayList<>();
+
+    Retaining() {
+      super(Arrays.asList("**"));
+    }
+
+    void keep(byte[] data) {
+      retained.add(retain(data));
+    }
+
+    void check(byte[][] data) throws IOException {
+      for (int i = 0; i < data.length; i++) {
+        RetainedBytes bytes = retained.get(i);
+        Assert.assertEquals(data[i].length, bytes.size());
+        Assert.assertArrayEquals(data[i], bytes.toByteArray());
+        try (InputStream in = bytes.openStream()) {
+          Assert.assertArrayEquals(data[i], IOUtils.toByteArray(in));
+        }
+      }
+    }
+
+    void release() {
+      retained.clear();
+      releaseRetained();
+    }
+
+    @Override
+    public void transform(String path, InputStream is, List<Relocator> relocators) {}
+
+    @Override
+    public boolean hasTransformedResource() {
+      return !retained.isEmpty();
+    }
+
+    @Override
+    public void modifyOutputStream(ZipOutputStream jos) {}
+
+  }
+
+}
@@ -0,0 +1,429 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.gcolin.transformers.test;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.github.jengelman.gradle.plugins.shadow.transformers.Transformer;
+
+import net.gcolin.transformers.OrderedTransformer;
+import net.gcolin.transformers.WebFragmentTransformer;
+import net.gcolin.transformers.XmlMergeTransformer;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.zip.ZipOutputStream;
+import org.gradle.api.file.FileTreeElement;
+import org.gradle.api.file.RelativePath;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Supplier;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Scale test of the transformers on a fat jar. Thousands of synthetic dependency jars with a
+ * <code>web-fragment.xml</code>, a <code>beans.xml</code>, an ordered text file and a class are
+ * read like shadow does: <code>canTransformResource</code>, <code>transform</code> then
+ * <code>modifyOutputStream</code> in a real jar.
+ *
+ * <p>
+ * The wall time is divided by the time of copying the same jars without transformer, measured in
+ * the same run, so the ratio does not depend much on the machine. The ratio, the bytes allocated
+ * by the thread and the growth of the heap are compared with <code>scale-baseline.properties</code>.
+ * The memory is only compared with a baseline of the same JDK and garbage collector. The test runs
+ * only with <code>-Dtransformers.scale=true</code> (<code>gradle scaleTest</code>).
+ * </p>
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+public class ScaleTest {
+
+  private static final String PREFIX = "transformers.scale";
+  private static final String BASELINE = "scale-baseline.properties";
+  private static final int ORDERING_DEGREE = 4;
+  private static final int ITERATIONS = 3;
+  private static final double TIME_TOLERANCE = 0.5;
+  private static final double MEMORY_TOLERANCE = 0.25;
+
+  @ClassRule
+  public static TemporaryFolder folder = new TemporaryFolder();
+
+  private static Logger logger = LoggerFactory.getLogger(ScaleTest.class);
+  private static int nbJars;
+  private static List<File> jars;
+  private static Map<String, FileTreeElement> elements;
+  private static Properties baseline;
+  private static Properties recorded;
+  private static long copyNanos;
+
+  @BeforeClass
+  public static void beforeClass() throws IOException {
+    Assume.assumeTrue(Boolean.getBoolean(PREFIX));
+    nbJars = Integer.getInteger(PREFIX + ".jars", 2000);
+    baseline = new Properties();
+    try (InputStream in = ScaleTest.class.getClassLoader().getResourceAsStream(BASELINE)) {
+      if (in != null) {
+        baseline.load(in);
+      }
+    }
+    recorded = new Properties();
+    recorded.setProperty("jars", String.valueOf(nbJars));
+    jars = new ArrayList<>(nbJars);
+    elements = new HashMap<>();
+    File dir = folder.newFolder("dependencies");
+    for (int i = 0; i < nbJars; i++) {
+      jars.add(dependency(dir, i));
+    }
+    // the elements are created by shadow, they are not measured
+    for (File jar : jars) {
+      try (ZipFile zip = new ZipFile(jar)) {
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+          String path = entries.nextElement().getName();
+          if (!elements.containsKey(path)) {
+            elements.put(path, element(path));
+          }
+        }
+      }
+    }
+    recorded.setProperty("jdk", System.getProperty("java.specification.version"));
+    recorded.setProperty("gc", gc());
+    copy();
+    copyNanos = Long.MAX_VALUE;
+    for (int i = 0; i < ITERATIONS; i++) {
+      copyNanos = Math.min(copyNanos, copy());
+    }
+    logger.info("copy of the jars in {} ns", copyNanos);
+  }
+
+  /**
+   * Copy all the entries of the jars in a jar, the reference time of the run.
+   */
+  private static long copy() throws IOException {
+    long start = System.nanoTime();
+    try (ZipOutputStream jos = new ZipOutputStream(new File(folder.getRoot(), "copy.jar"))) {
+      int index = 0;
+      for (File jar : jars) {
+        try (ZipFile zip = new ZipFile(jar)) {
+          Enumeration<? extends ZipEntry> entries = zip.entries();
+          while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            jos.putNextEntry(new org.apache.tools.zip.ZipEntry(index++ + "/" + entry.getName()));
+            try (InputStream in = zip.getInputStream(entry)) {
+              IOUtils.copy(in, jos);
+            }
+            jos.closeEntry();
+          }
+        }
+      }
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static String gc() {
+    List<String> names = new ArrayList<>();
+    for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+      names.add(bean.getName());
+    }
+    return String.join(", ", names);
+  }
+
+  /**
+   * Write the measures in the file given by <code>-Dtransformers.scale.record</code>, for
+   * updating the baseline after an intended change.
+   */
+  @AfterClass
+  public static void afterClass() throws IOException {
+    String record = System.getProperty(PREFIX + ".record");
+    if (record == null || recorded == null) {
+      return;
+    }
+    File file = new File(record);
+    try (OutputStream out = new FileOutputStream(file)) {
+      recorded.store(out, "ScaleTest baseline, " + nbJars + " jars, best of " + ITERATIONS
+          + " runs, see the README");
+    }
+    logger.info("baseline written in {}", file.getAbsolutePath());
+  }
+
+  @Test
+  public void testWebFragments() throws IOException {
+    Measure measure = measure(() -> new WebFragmentTransformer());
+    String merged = read("META-INF/web-fragment.xml");
+    Assert.assertEquals(nbJars, count(merged, "<listener-class>"));
+    Assert.assertTrue(merged.indexOf("Listener0<") < merged.indexOf("Listener1<"));
+    compare("webFragment", measure);
+  }
+
+  @Test
+  public void testBeans() throws IOException {
+    Measure measure = measure(() -> new XmlMergeTransformer(path -> "/beans/interceptors/class",
+        Arrays.asList("META-INF/beans.xml")));
+    Assert.assertEquals(nbJars, count(read("META-INF/beans.xml"), "<class>"));
+    compare("beans", measure);
+  }
+
+  @Test
+  public void testOrdered() throws IOException {
+    Measure measure = measure(
+        () -> new OrderedTransformer(Arrays.asList("META-INF/resources/*.txt")));
+    String merged = read("META-INF/resources/hello.txt");
+    Assert.assertEquals(nbJars, count(merged, "# "));
+    Assert.assertTrue(merged.startsWith("# 00000\n"));
+    compare("ordered", measure);
+  }
+
+  /**
+   * Run the lifecycle once for warming up, then keep the best of the next iterations.
+   */
+  private Measure measure(Supplier<Transformer> supplier) throws IOException {
+    run(supplier.get());
+    Measure best = null;
+    for (int i = 0; i < ITERATIONS; i++) {
+      Measure measure = run(supplier.get());
+      best = best == null ? measure : best.min(measure);
+    }
+    logger.info("{}", best);
+    return best;
+  }
+
+  private Measure run(Transformer transformer) throws IOException {
+    List<MemoryPoolMXBean> pools = new ArrayList<>();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        pools.add(pool);
+      }
+    }
+    System.gc();
+    long used = 0;
+    for (MemoryPoolMXBean pool : pools) {
+      pool.resetPeakUsage();
+      used += pool.getUsage().getUsed();
+    }
+    long allocated = allocated();
+    long start = System.nanoTime();
+    for (File jar : jars) {
+      try (ZipFile zip = new ZipFile(jar)) {
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+          ZipEntry entry = entries.nextElement();
+          if (transformer.canTransformResource(elements.get(entry.getName()))) {
+            try (InputStream in = zip.getInputStream(entry)) {
+              transformer.transform(entry.getName(), in, Collections.emptyList());
+            }
+          }
+        }
+      }
+    }
+    try (ZipOutputStream jos = new ZipOutputStream(new File(folder.getRoot(), "fat.jar"))) {
+      if (transformer.hasTransformedResource()) {
+        transformer.modifyOutputStream(jos);
+      }
+    }
+    Measure measure = new Measure();
+    measure.nanos = System.nanoTime() - start;
+    measure.allocatedBytes = allocated < 0 ? -1 : allocated() - allocated;
+    long peak = 0;
+    for (MemoryPoolMXBean pool : pools) {
+      peak += pool.getPeakUsage().getUsed();
+    }
+    measure.peakHeapBytes = Math.max(0, peak - used);
+    return measure;
+  }
+
+  /**
+   * Compare a measure with the baseline. The baseline applies only to the same number of jars, and
+   * the memory only to the same JDK and garbage collector.
+   */
+  private void compare(String name, Measure measure) {
+    double timeRatio = (double) measure.nanos / copyNanos;
+    recorded.setProperty(name + ".timeRatio", String.format(Locale.ROOT, "%.3f", timeRatio));
+    recorded.setProperty(name + ".allocatedBytes", String.valueOf(measure.allocatedBytes));
+    recorded.setProperty(name + ".peakHeapBytes", String.valueOf(measure.peakHeapBytes));
+    Assume.assumeTrue("no baseline for " + nbJars + " jars",
+        String.valueOf(nbJars).equals(baseline.getProperty("jars")));
+    String tolerance = System.getProperty(PREFIX + ".tolerance");
+    double time = tolerance == null ? TIME_TOLERANCE : Double.parseDouble(tolerance);
+    double memory = tolerance == null ? MEMORY_TOLERANCE : Double.parseDouble(tolerance);
+    List<String> regressions = new ArrayList<>();
+    check(regressions, name + ".timeRatio", timeRatio, time);
+    if (recorded.getProperty("jdk").equals(baseline.getProperty("jdk"))
+        && recorded.getProperty("gc").equals(baseline.getProperty("gc"))) {
+      check(regressions, name + ".allocatedBytes", measure.allocatedBytes, memory);
+      check(regressions, name + ".peakHeapBytes", measure.peakHeapBytes, memory);
+    } else {
+      logger.info("the memory is not compared, the baseline is for the JDK {} with {}",
+          baseline.getProperty("jdk"), baseline.getProperty("gc"));
+    }
+    Assert.assertTrue("performance regression: " + regressions, regressions.isEmpty());
+  }
+
+  private void check(List<String> regressions, String key, double value, double tolerance) {
+    String expected = baseline.getProperty(key);
+    if (expected == null || value < 0) {
+      return;
+    }
+    double limit = Double.parseDouble(expected) * (1 + tolerance);
+    if (value > limit) {
+      regressions.add(key + " " + value + " > " + limit + " (baseline " + expected + ")");
+    }
+  }
+
+  private static long allocated() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+      if (sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled()) {
+        return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+    }
+    return -1;
+  }
+
+  private String read(String path) throws IOException {
+    try (ZipFile zip = new ZipFile(new File(folder.getRoot(), "fat.jar"))) {
+      ZipEntry entry = zip.getEntry(path);
+      Assert.assertNotNull(path, entry);
+      try (InputStream in = zip.getInputStream(entry)) {
+        return new String(IOUtils.toByteArray(in), StandardCharsets.UTF_8);
+      }
+    }
+  }
+
+  private static int count(String str, String part) {
+    int nb = 0;
+    int index = str.indexOf(part);
+    while (index != -1) {
+      nb++;
+      index = str.indexOf(part, index + part.length());
+    }
+    return nb;
+  }
+
+  /**
+   * Write the jar of a synthetic dependency. The content depends only on its index, so two runs
+   * measure the same work.
+   */
+  private static File dependency(File dir, int index) throws IOException {
+    String id = String.format("%05d", index);
+    File file = new File(dir, "dependency" + id + ".jar");
+    try (java.util.zip.ZipOutputStream out =
+        new java.util.zip.ZipOutputStream(new FileOutputStream(file))) {
+      entry(out, "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\n");
+      entry(out, "META-INF/web-fragment.xml", webFragment(index));
+      entry(out, "META-INF/beans.xml", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+          + "<beans xmlns=\"http://xmlns.jcp.org/xml/ns/javaee\" bean-discovery-mode=\"all\">\n"
+          + "  <interceptors>\n    <class>net.gcolin.dependency" + id + ".Interceptor</class>\n"
+          + "  </interceptors>\n</beans>\n");
+      StringBuilder text = new StringBuilder("# ").append(id).append('\n');
+      for (int i = 0; i < 10; i++) {
+        text.append("net.gcolin.dependency").append(id).append(".Service").append(i).append('\n');
+      }
+      entry(out, "META-INF/resources/hello.txt", text.toString());
+      entry(out, "net/gcolin/dependency" + id + "/Service.class", "not transformed");
+    }
+    return file;
+  }
+
+  /**
+   * A fragment ordered after the previous fragments, every tenth fragment is after the others.
+   */
+  private static String webFragment(int index) {
+    StringBuilder str = new StringBuilder(
+        "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n"
+            + "<web-fragment xmlns=\"http://xmlns.jcp.org/xml/ns/javaee\" version=\"3.1\">\n");
+    str.append("  <name>fragment").append(index).append("</name>\n  <ordering>\n    <after>\n");
+    if (index % 10 == 9) {
+      str.append("      <others/>\n");
+    }
+    for (int j = Math.max(0, index - ORDERING_DEGREE); j < index; j++) {
+      str.append("      <name>fragment").append(j).append("</name>\n");
+    }
+    str.append("    </after>\n  </ordering>\n");
+    str.append("  <listener>\n    <listener-class>Listener").append(index)
+        .append("</listener-class>\n  </listener>\n");
+    str.append("</web-fragment>\n");
+    return str.toString();
+  }
+
+  private static void entry(java.util.zip.ZipOutputStream out, String path, String content)
+      throws IOException {
+    out.putNextEntry(new ZipEntry(path));
+    out.write(content.getBytes(StandardCharsets.UTF_8));
+    out.closeEntry();
+  }
+
+  private static FileTreeElement element(String path) {
+    FileTreeElement element = mock(FileTreeElement.class);
+    when(element.getPath()).thenReturn(path);
+    when(element.getName()).thenReturn(path.substring(path.lastIndexOf('/') + 1));
+    when(element.getRelativePath()).thenReturn(RelativePath.parse(true, path));
+    return element;
+  }
+
+  private static class Measure {
+
+    private long nanos;
+    private long allocatedBytes;
+    private long peakHeapBytes;
+
+    Measure min(Measure other) {
+      Measure min = new Measure();
+      min.nanos = Math.min(nanos, other.nanos);
+      min.allocatedBytes = Math.min(allocatedBytes, other.allocatedBytes);
+      min.peakHeapBytes = Math.min(peakHeapBytes, other.peakHeapBytes);
+      return min;
+    }
+
+    @Override
+    public String toString() {
+      return "nanos=" + nanos + ", allocatedBytes=" + allocatedBytes + ", peakHeapBytes="
+          + peakHeapBytes;
+    }
+
+  }
+
+}
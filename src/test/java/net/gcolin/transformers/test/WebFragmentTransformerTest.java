@@ -24,11 +24,15 @@ import net.gcolin.transformers.WebFragmentTransformer;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.tools.zip.ZipOutputStream;
+import org.gradle.api.GradleException;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
@@ -41,6 +45,9 @@ import java.nio.charset.StandardCharsets;
  */
 public class WebFragmentTransformerTest {
 
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
   private WebFragmentTransformer transformer;
   private ZipOutputStream jos;
   private ByteArrayOutputStream bout;
@@ -101,6 +108,17 @@ public class WebFragmentTransformerTest {
     eq("beforeOthersResult.xml");
   }
   
+  @Test
+  public void testParallel() throws IOException {
+    transformer.setParallel(true);
+    load("afterOthers.xml");
+    load("noOrder.xml");
+    load("beforeOthers.xml");
+    Assert.assertTrue(transformer.hasTransformedResource());
+    transformer.modifyOutputStream(jos);
+    eq("beforeOthersResult.xml");
+  }
+
   @Test
   public void testAfterName() throws IOException {
     load("afterOthers.xml");
@@ -123,6 +141,117 @@ public class WebFragmentTransformerTest {
     eq("beforeNameResult.xml");
   }
 
+  @Test
+  public void testCache() throws IOException {
+    File cache = folder.newFolder("cache");
+    for (int i = 0; i < 2; i++) {
+      before();
+      transformer.setCacheDirectory(cache);
+      load("afterOthers.xml");
+      load("noOrder.xml");
+      load("beforeOthers.xml");
+      load("afterName.xml");
+      load("beforeName.xml");
+      transformer.modifyOutputStream(jos);
+      eq("beforeNameResult.xml");
+      Assert.assertEquals(5, cache.list().length);
+    }
+  }
+
+  @Test
+  public void testSplice() throws IOException {
+    transformer.setSplice(true);
+    load("afterOthers.xml");
+    load("noOrder.xml");
+    load("beforeOthers.xml");
+    load("afterName.xml");
+    load("beforeName.xml");
+    transformer.modifyOutputStream(jos);
+    eq("beforeNameResult.xml");
+  }
+
+  @Test
+  public void testSpliceSpilled() throws IOException {
+    File spill = folder.newFolder("spill");
+    transformer.setSplice(true);
+    transformer.setMemoryBudget(0);
+    transformer.setSpillDirectory(spill);
+    load("afterOthers.xml");
+    load("noOrder.xml");
+    load("beforeOthers.xml");
+    load("afterName.xml");
+    load("beforeName.xml");
+    transformer.modifyOutputStream(jos);
+    eq("beforeNameResult.xml");
+    Assert.assertEquals(0, spill.list().length);
+  }
+
+  @Test
+  public void testSpliceNullName() throws IOException {
+    transformer.setSplice(true);
+    transformer.setNewName(null);
+    load("afterOthers.xml");
+    load("noOrder.xml");
+    transformer.modifyOutputStream(jos);
+    eq("afterOthersResult.xml");
+  }
+
+  @Test
+  public void testSpliceFallback() throws IOException {
+    transformer.setSplice(true);
+    load("afterOthers.xml");
+    load("noOrderLatin1.xml");
+    transformer.modifyOutputStream(jos);
+    eq("afterOthersResult.xml");
+  }
+
+  @Test
+  public void testSpliceMalformed() throws IOException {
+    for (boolean splice : new boolean[] {false, true}) {
+      before();
+      transformer.setSplice(splice);
+      load("afterOthers.xml");
+      load("noOrder.xml");
+      load("malformedFragment.xml");
+      transformer.modifyOutputStream(jos);
+      // the malformed fragment is parsed and dropped, it is not copied
+      eq("afterOthersResult.xml");
+    }
+  }
+
+  @Test
+  public void testValidateOffline() throws IOException {
+    transformer.setValidate(true);
+    transformer.setSplice(true);
+    load("afterOthers.xml");
+    load("noOrder.xml");
+    load("beforeOthers.xml");
+    transformer.modifyOutputStream(jos);
+    eq("beforeOthersResult.xml");
+  }
+
+  @Test
+  public void testValidateJakartaOffline() throws IOException {
+    transformer.setValidate(true);
+    load("jakartaFragment.xml");
+    load("jakartaFragmentInvalid.xml");
+    try {
+      transformer.modifyOutputStream(jos);
+      Assert.fail("the listener has no class");
+    } catch (GradleException ex) {
+      Assert.assertTrue(ex.getMessage(), ex.getMessage().contains("listener-name"));
+      Assert.assertTrue(ex.getMessage(), ex.getMessage().contains("number 2 of 2"));
+      Assert.assertFalse(ex.getMessage(), ex.getMessage().contains("number 1 of 2"));
+    }
+  }
+
+  @Test(expected = GradleException.class)
+  public void testCycle() throws IOException {
+    load("cycleA.xml");
+    load("cycleB.xml");
+    transformer.modifyOutputStream(jos);
+  }
+
   private void load(String path) throws IOException {
     try (InputStream in = this.getClass().getClassLoader().getResourceAsStream(path)) {
       transformer.transform(path, in, null);
@@ -0,0 +1,560 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.gcolin.transformers.test;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.github.jengelman.gradle.plugins.shadow.relocation.Relocator;
+import com.github.jengelman.gradle.plugins.shadow.relocation.SimpleRelocator;
+
+import net.gcolin.transformers.TransformerMetrics;
+import net.gcolin.transformers.TransformerMetrics.Phase;
+import net.gcolin.transformers.XmlCatalog;
+import net.gcolin.transformers.XmlMergeTransformer;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.zip.ZipEntry;
+import org.apache.tools.zip.ZipOutputStream;
+import org.gradle.api.GradleException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.xml.XMLConstants;
+
+/**
+ * A test.
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+public class XmlMergeTransformerTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private XmlMergeTransformer transformer;
+  private ZipOutputStream jos;
+  private ByteArrayOutputStream bout;
+
+  @Before
+  public void before() throws IOException {
+    transformer = new XmlMergeTransformer(path -> "/caches/cache", Arrays.asList("*.xml"));
+    jos = mock(ZipOutputStream.class);
+    bout = new ByteArrayOutputStream();
+    doAnswer(invocation -> {
+      bout.write((Integer) invocation.getArguments()[0]);
+      return null;
+    }).when(jos).write(anyInt());
+    doAnswer(invocation -> {
+      bout.write((byte[]) invocation.getArguments()[0]);
+      return null;
+    }).when(jos).write(anyObject());
+    doAnswer(invocation -> {
+      bout.write((byte[]) invocation.getArguments()[0], (Integer) invocation.getArguments()[1],
+          (Integer) invocation.getArguments()[2]);
+      return null;
+    }).when(jos).write(anyObject(), anyInt(), anyInt());
+  }
+
+  @Test
+  public void testDom() throws IOException {
+    load("cacheconfig1.xml");
+    load("cacheconfig2.xml");
+    Assert.assertTrue(transformer.hasTransformedResource());
+    transformer.modifyOutputStream(jos);
+    eq("cacheconfigResult.xml");
+  }
+
+  @Test
+  public void testStreaming() throws IOException {
+    transformer.setStreaming(true);
+    load("cacheconfig1.xml");
+    load("cacheconfig2.xml");
+    Assert.assertTrue(transformer.hasTransformedResource());
+    transformer.modifyOutputStream(jos);
+    eq("cacheconfigResult.xml");
+  }
+
+  @Test
+  public void testParallel() throws IOException {
+    transformer.setParallel(true);
+    load("cacheconfig1.xml");
+    load("cacheconfig2.xml");
+    Assert.assertTrue(transformer.hasTransformedResource());
+    transformer.modifyOutputStream(jos);
+    eq("cacheconfigResult.xml");
+  }
+
+  @Test
+  public void testParallelEntries() throws IOException {
+    transformer.setParallel(true);
+    for (String path : Arrays.asList("b.xml", "a.xml")) {
+      load(path, "cacheconfig1.xml");
+      load(path, "cacheconfig2.xml");
+    }
+    transformer.modifyOutputStream(jos);
+    byte[] expected;
+    try (InputStream in =
+        this.getClass().getClassLoader().getResourceAsStream("cacheconfigResult.xml")) {
+      expected = IOUtils.toByteArray(in);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(expected);
+    ArgumentCaptor<ZipEntry> entries = ArgumentCaptor.forClass(ZipEntry.class);
+    verify(jos, times(2)).putNextEntry(entries.capture());
+    Assert.assertEquals("a.xml", entries.getAllValues().get(0).getName());
+    Assert.assertEquals("b.xml", entries.getAllValues().get(1).getName());
+    for (ZipEntry entry : entries.getAllValues()) {
+      Assert.assertEquals(expected.length, entry.getSize());
+      Assert.assertEquals(crc.getValue(), entry.getCrc());
+    }
+    String str = new String(expected, StandardCharsets.UTF_8);
+    Assert.assertEquals(str + str, new String(bout.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testStored() throws IOException {
+    transformer.store("cacheconfig.xml");
+    load("cacheconfig1.xml");
+    load("cacheconfig2.xml");
+    transformer.modifyOutputStream(jos);
+    eq("cacheconfigResult.xml");
+    ArgumentCaptor<ZipEntry> entry = ArgumentCaptor.forClass(ZipEntry.class);
+    verify(jos).putNextEntry(entry.capture());
+    CRC32 crc = new CRC32();
+    crc.update(bout.toByteArray());
+    Assert.assertEquals(ZipEntry.STORED, entry.getValue().getMethod());
+    Assert.assertEquals(bout.size(), entry.getValue().getSize());
+    Assert.assertEquals(crc.getValue(), entry.getValue().getCrc());
+  }
+
+  @Test
+  public void testCompressionLevel() throws IOException {
+    transformer.setJarLevel(Deflater.BEST_COMPRESSION);
+    transformer.compress("**/*.txt", Deflater.NO_COMPRESSION);
+    transformer.compress("*.xml", Deflater.BEST_SPEED);
+    load("cacheconfig1.xml");
+    load("cacheconfig2.xml");
+    transformer.modifyOutputStream(jos);
+    eq("cacheconfigResult.xml");
+    InOrder order = inOrder(jos);
+    order.verify(jos).setLevel(Deflater.BEST_SPEED);
+    order.verify(jos).putNextEntry(anyObject());
+    order.verify(jos).closeEntry();
+    order.verify(jos).setLevel(Deflater.BEST_COMPRESSION);
+  }
+
+  @Test
+  public void testMergeKeyFirst() throws IOException {
+    transformer.setMergeKey("name");
+    load("cacheconfig1.xml");
+    load("cacheconfig2.xml");
+    load("cacheconfig3.xml");
+    transformer.modifyOutputStream(jos);
+    eq("cacheconfigKeyFirst.xml");
+  }
+
+  @Test
+  public void testMergeKeyLast() throws IOException {
+    transformer.setMergeKey("normalize-space(name)");
+    transformer.setPrecedence(XmlMergeTransformer.Precedence.LAST);
+    transformer.setStreaming(true);
+    load("cacheconfig1.xml");
+    load("cacheconfig2.xml");
+    load("cacheconfig3.xml");
+    transformer.modifyOutputStream(jos);
+    eq("cacheconfigKeyLast.xml");
+  }
+
+  @Test
+  public void testDeepMerge() throws IOException {
+    transformer.setMergeKey("name");
+    transformer.setPrecedence(XmlMergeTransformer.Precedence.LAST);
+    transformer.setDeepMerge(true);
+    load("cacheconfig1.xml");
+    load("cacheconfig2.xml");
+    load("cacheconfig3.xml");
+    transformer.modifyOutputStream(jos);
+    eq("cacheconfigDeep.xml");
+  }
+
+  @Test
+  public void testDoctypeOffline() throws IOException {
+    transformer.setLenientEntities(true);
+    load("cacheconfig1.xml");
+    load("cacheconfigDoctype.xml");
+    transformer.modifyOutputStream(jos);
+    eq("cacheconfigResult.xml");
+  }
+
+  @Test
+  public void testDoctypeOfflineStreaming() throws IOException {
+    transformer.setLenientEntities(true);
+    transformer.setStreaming(true);
+    load("cacheconfig1.xml");
+    load("cacheconfigDoctype.xml");
+    transformer.modifyOutputStream(jos);
+    eq("cacheconfigResult.xml");
+  }
+
+  @Test
+  public void testUnknownEntity() throws IOException {
+    load("cacheconfig1.xml");
+    load("cacheconfigDoctype.xml");
+    try {
+      transformer.modifyOutputStream(jos);
+      Assert.fail("the entity is not in the catalog");
+    } catch (GradleException ex) {
+      Assert.assertTrue(ex.getMessage(), ex.getMessage().contains(
+          "the external entity http://localhost:1/suffix.txt is not in the catalog"));
+    }
+  }
+
+  @Test
+  public void testUnknownEntityStreaming() throws IOException {
+    transformer.setStreaming(true);
+    load("cacheconfig1.xml");
+    load("cacheconfigDoctype.xml");
+    try {
+      transformer.modifyOutputStream(jos);
+      Assert.fail("the entity is not in the catalog");
+    } catch (GradleException ex) {
+      Assert.assertTrue(ex.getMessage(), ex.getMessage().contains(
+          "the external entity http://localhost:1/suffix.txt is not in the catalog"));
+    }
+  }
+
+  @Test
+  public void testCacheLenientEntities() throws IOException {
+    File cache = folder.newFolder("cache");
+    transformer.setLenientEntities(true);
+    transformer.setCacheDirectory(cache);
+    load("cacheconfig1.xml");
+    load("cacheconfigDoctype.xml");
+    transformer.modifyOutputStream(jos);
+
+    // the document read as lenient is not reused by a strict transformer
+    before();
+    transformer.setCacheDirectory(cache);
+    load("cacheconfig1.xml");
+    load("cacheconfigDoctype.xml");
+    try {
+      transformer.modifyOutputStream(jos);
+      Assert.fail("the entity is not in the catalog");
+    } catch (GradleException ex) {
+      Assert.assertTrue(ex.getMessage(), ex.getMessage().contains(
+          "the external entity http://localhost:1/suffix.txt is not in the catalog"));
+    }
+  }
+
+  @Test
+  public void testCacheMaxSize() throws IOException {
+    File cache = folder.newFolder("cache");
+    transformer.setCacheDirectory(cache);
+    transformer.setCacheMaxSize(1);
+    load("cacheconfig1.xml");
+    load("cacheconfig2.xml");
+    transformer.modifyOutputStream(jos);
+    eq("cacheconfigResult.xml");
+    // the two documents were written, then deleted
+    Assert.assertEquals(2, cache.list().length);
+    for (File parent : cache.listFiles()) {
+      Assert.assertEquals(0, parent.list().length);
+    }
+  }
+
+  @Test
+  public void testCatalog() {
+    XmlCatalog catalog = XmlCatalog.shared();
+    Assert.assertNotNull(
+        catalog.get("-//Sun Microsystems, Inc.//DTD Web Application 2.3//EN", "web-app.dtd"));
+    Assert.assertNotNull(catalog.get(null, "https://java.sun.com/dtd/web-app_2_3.dtd"));
+    Assert.assertNull(catalog.get(null, "http://localhost:1/caches.dtd"));
+    Assert.assertNotNull(
+        catalog.get(null, "http://xmlns.jcp.org/xml/ns/javaee/web-fragment_3_1.xsd"));
+    Assert.assertNotNull(
+        catalog.get(null, "http://jakarta.ee/xml/ns/jakartaee/web-fragment_6_0.xsd"));
+    Assert.assertNotNull(catalog.get(null, "https://jakarta.ee/xml/ns/jakartaee/beans_4_0.xsd"));
+    Assert.assertNotNull(catalog.get(null, "https://www.w3.org/2001/xml.xsd"));
+    Assert.assertNotNull(catalog.resolveResource(XMLConstants.W3C_XML_SCHEMA_NS_URI, null, null,
+        "web-common_3_0.xsd", "http://java.sun.com/xml/ns/javaee/web-fragment_3_0.xsd"));
+  }
+
+  @Test
+  public void testValidate() throws Exception {
+    transformer.setValidate(true);
+    transformer.schema("http://localhost:1/caches.xsd", resource("caches.xsd"));
+    load("validCache1.xml");
+    load("validCache2.xml");
+    transformer.modifyOutputStream(jos);
+    Assert.assertTrue(new String(bout.toByteArray(), StandardCharsets.UTF_8)
+        .contains("<name>latest</name>"));
+    Assert.assertTrue(transformer.getMetrics().getNanos(Phase.VALIDATE) > 0);
+  }
+
+  @Test
+  public void testValidateInvalid() throws Exception {
+    transformer.setValidate(true);
+    transformer.setParallel(true);
+    transformer.schema("http://localhost:1/caches.xsd", resource("caches.xsd"));
+    load("validCache1.xml");
+    load("invalidCache.xml");
+    try {
+      transformer.modifyOutputStream(jos);
+      Assert.fail("the merged file is invalid");
+    } catch (GradleException ex) {
+      Assert.assertTrue(ex.getMessage(), ex.getMessage().startsWith("invalid cacheconfig.xml:"));
+      Assert.assertTrue(ex.getMessage(), ex.getMessage().contains("'many'"));
+      Assert.assertTrue(ex.getMessage(),
+          ex.getMessage().contains("\ninvalid cacheconfig.xml number 2 of 2 "));
+      Assert.assertFalse(ex.getMessage(), ex.getMessage().contains("number 1 of 2"));
+    }
+    Assert.assertEquals(0, bout.size());
+  }
+
+  @Test
+  public void testValidateOffline() throws Exception {
+    transformer.setValidate(true);
+    load("validCache1.xml");
+    load("validCache2.xml");
+    try {
+      transformer.modifyOutputStream(jos);
+      Assert.fail("the schema is not local");
+    } catch (GradleException ex) {
+      Assert.assertTrue(ex.getMessage(), ex.getMessage().contains(
+          "the schema http://localhost:1/caches.xsd is not in the catalog"));
+    }
+  }
+
+  @Test
+  public void testCompact() throws IOException {
+    transformer.setCompact(true);
+    load("cacheconfig1.xml");
+    load("cacheconfig2.xml");
+    transformer.modifyOutputStream(jos);
+    eq("cacheconfigCompact.xml");
+  }
+
+  @Test
+  public void testCompactStreaming() throws IOException {
+    transformer.setCompact(true);
+    transformer.setStreaming(true);
+    load("cacheconfig1.xml");
+    load("cacheconfig2.xml");
+    transformer.modifyOutputStream(jos);
+    eq("cacheconfigCompact.xml");
+  }
+
+  @Test
+  public void testParallelCompactStreaming() throws IOException {
+    transformer.setParallel(true);
+    transformer.setCompact(true);
+    transformer.setStreaming(true);
+    int entries = 64;
+    for (int i = 0; i < entries; i++) {
+      load("cache" + i + ".xml", "cacheconfig1.xml");
+      load("cache" + i + ".xml", "cacheconfig2.xml");
+    }
+    transformer.modifyOutputStream(jos);
+    String expected;
+    try (InputStream in =
+        this.getClass().getClassLoader().getResourceAsStream("cacheconfigCompact.xml")) {
+      expected = new String(IOUtils.toByteArray(in), StandardCharsets.UTF_8);
+    }
+    StringBuilder all = new StringBuilder();
+    for (int i = 0; i < entries; i++) {
+      all.append(expected);
+    }
+    Assert.assertEquals(all.toString(), new String(bout.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testSpill() throws IOException {
+    File spill = folder.newFolder("spill");
+    transformer.setMemoryBudget(0);
+    transformer.setSpillDirectory(spill);
+    load("cacheconfig1.xml");
+    load("cacheconfig2.xml");
+    Assert.assertEquals(1, spill.list().length);
+    transformer.modifyOutputStream(jos);
+    eq("cacheconfigResult.xml");
+    Assert.assertEquals(420, transformer.getMetrics().getSpilledBytes());
+    Assert.assertEquals(0, spill.list().length);
+  }
+
+  @Test
+  public void testSpillStreaming() throws IOException {
+    File spill = folder.newFolder("spill");
+    transformer.setStreaming(true);
+    // the first resource stays on the heap
+    transformer.setMemoryBudget(200);
+    transformer.setSpillDirectory(spill);
+    load("cacheconfig1.xml");
+    load("cacheconfig2.xml");
+    transformer.modifyOutputStream(jos);
+    eq("cacheconfigResult.xml");
+    Assert.assertEquals(248, transformer.getMetrics().getSpilledBytes());
+    Assert.assertEquals(0, spill.list().length);
+  }
+
+  @Test
+  public void testSpillFailure() throws IOException {
+    transformer.setMemoryBudget(0);
+    transformer.setSpillDirectory(folder.newFile("file"));
+    try {
+      load("cacheconfig1.xml");
+      Assert.fail("the spill directory is a file");
+    } catch (GradleException ex) {
+      // expected
+    }
+    // the resource which was not retained does not leave an empty document
+    Assert.assertFalse(transformer.hasTransformedResource());
+  }
+
+  @Test
+  public void testDeduplicate() throws IOException {
+    transformer.setDeduplicate(true);
+    load("cacheconfig1.xml");
+    load("cacheconfig2.xml");
+    load("cacheconfig1.xml");
+    load("cacheconfig2.xml");
+    transformer.modifyOutputStream(jos);
+    Assert.assertEquals(2, transformer.getMetrics().getDuplicates());
+    eq("cacheconfigResult.xml");
+  }
+
+  @Test
+  public void testSingle() throws IOException {
+    load("cacheconfig1.xml");
+    transformer.modifyOutputStream(jos);
+    eq("cacheconfig1.xml");
+  }
+
+  @Test
+  public void testSingleMalformed() throws IOException {
+    load("malformedCache.xml");
+    try {
+      transformer.modifyOutputStream(jos);
+      Assert.fail("the lone document is not well formed");
+    } catch (GradleException ex) {
+      Assert.assertTrue(ex.getMessage(), ex.getMessage().startsWith("invalid cacheconfig.xml: "));
+    }
+  }
+
+  @Test
+  public void testSingleCompact() throws IOException {
+    transformer.setCompact(true);
+    load("cacheconfig1.xml");
+    transformer.modifyOutputStream(jos);
+    eq("cacheconfig1Compact.xml");
+  }
+
+  @Test
+  public void testRelocate() throws IOException {
+    List<Relocator> relocators = Arrays.asList(
+        new SimpleRelocator("org.foo", "shaded.org.foo", null, null),
+        new SimpleRelocator("com.bar", "shaded.com.bar", null, null));
+    try (InputStream in = this.getClass().getClassLoader().getResourceAsStream("relocate.xml")) {
+      transformer.transform("relocate.xml", in, relocators);
+    }
+    transformer.modifyOutputStream(jos);
+    eq("relocateResult.xml");
+  }
+
+  @Test
+  public void testReproducible() throws IOException {
+    transformer.setReproducible(true);
+    for (String path : Arrays.asList("b.xml", "a.xml")) {
+      try (InputStream in = this.getClass().getClassLoader().getResourceAsStream("noOrder.xml")) {
+        transformer.transform(path, in, null);
+      }
+    }
+    transformer.modifyOutputStream(jos);
+    ArgumentCaptor<ZipEntry> entries = ArgumentCaptor.forClass(ZipEntry.class);
+    verify(jos, times(2)).putNextEntry(entries.capture());
+    Assert.assertEquals("a.xml", entries.getAllValues().get(0).getName());
+    Assert.assertEquals("b.xml", entries.getAllValues().get(1).getName());
+    long time = new GregorianCalendar(1980, Calendar.FEBRUARY, 1).getTimeInMillis();
+    Assert.assertEquals(time, entries.getAllValues().get(0).getTime());
+    Assert.assertEquals(time, entries.getAllValues().get(1).getTime());
+  }
+
+  @Test
+  public void testReport() throws IOException {
+    File report = new File(folder.getRoot(), "metrics/xml.json");
+    transformer.setReportFile(report);
+    load("cacheconfig1.xml");
+    load("cacheconfig2.xml");
+    transformer.modifyOutputStream(jos);
+    TransformerMetrics metrics = transformer.getMetrics();
+    Assert.assertEquals(2, metrics.getResources());
+    Assert.assertEquals(bout.size(), metrics.getBytesOut());
+    Assert.assertTrue(metrics.getNanos(Phase.PARSE) > 0);
+    Assert.assertTrue(metrics.getPeakArenaHeapBytes() > 0);
+    // the heap holds the parsed documents and the retained resources
+    Assert.assertTrue(metrics.getPeakHeapBytes() > metrics.getPeakArenaHeapBytes());
+    String json = new String(Files.readAllBytes(report.toPath()), StandardCharsets.UTF_8);
+    Assert.assertTrue(json.contains("\"transformer\": \"XmlMergeTransformer\""));
+    Assert.assertTrue(json.contains("\"resources\": 2,"));
+    Assert.assertTrue(json.contains("\"peakHeapBytes\": " + metrics.getPeakHeapBytes() + ","));
+  }
+
+  private void load(String path) throws IOException {
+    load("cacheconfig.xml", path);
+  }
+
+  private void load(String entry, String path) throws IOException {
+    try (InputStream in = this.getClass().getClassLoader().getResourceAsStream(path)) {
+      transformer.transform(entry, in, null);
+    }
+  }
+
+  private File resource(String path) throws Exception {
+    return new File(this.getClass().getClassLoader().getResource(path).toURI());
+  }
+
+  private void eq(String path) throws IOException {
+    try (InputStream in = this.getClass().getClassLoader().getResourceAsStream(path)) {
+      Assert.assertEquals(new String(IOUtils.toByteArray(in), StandardCharsets.UTF_8),
+          new String(bout.toByteArray(), StandardCharsets.UTF_8));
+    }
+  }
+
+}
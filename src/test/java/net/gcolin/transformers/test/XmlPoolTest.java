@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.gcolin.transformers.test;
+
+import net.gcolin.transformers.XmlCatalog;
+import net.gcolin.transformers.XmlPool;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.parsers.DocumentBuilder;
+
+/**
+ * A test.
+ *
+ * @author Gaël COLIN
+ * @since 1.1
+ */
+public class XmlPoolTest {
+
+  private static final String ENTITY = "<!DOCTYPE a [<!ENTITY e SYSTEM \"http://localhost:1/e\">]>"
+      + "<a>&e;</a>";
+
+  @Test
+  public void testReuse() throws IOException, SAXException {
+    XmlPool pool = new XmlPool();
+    for (int i = 0; i < 3; i++) {
+      Assert.assertEquals("a", pool.parse(xml("<a/>")).getDocumentElement().getTagName());
+    }
+    Assert.assertEquals(3, pool.getDocumentBuilderCounter().getBorrowed());
+    Assert.assertEquals(1, pool.getDocumentBuilderCounter().getCreated());
+    Assert.assertNotNull(pool.newDocument());
+    Assert.assertEquals(1, pool.getDocumentBuilderCounter().getCreated());
+  }
+
+  @Test
+  public void testResetAfterFailure() throws IOException, SAXException {
+    XmlPool pool = new XmlPool();
+    try {
+      pool.parse(xml("<a><b></a>"));
+      Assert.fail("not well formed");
+    } catch (SAXException ex) {
+      // expected
+    }
+    Document document = pool.parse(xml("<c>text</c>"));
+    Assert.assertEquals("text", document.getDocumentElement().getTextContent());
+    Assert.assertEquals(1, pool.getDocumentBuilderCounter().getCreated());
+
+    // the reset keeps the catalog
+    try {
+      pool.parse(xml(ENTITY));
+      Assert.fail("the entity is not in the catalog");
+    } catch (SAXException ex) {
+      Assert.assertTrue(ex.getMessage(), ex.getMessage().contains("not in the catalog"));
+    }
+    Assert.assertEquals(1, pool.getDocumentBuilderCounter().getCreated());
+  }
+
+  @Test
+  public void testResetBorrowed() throws IOException, SAXException {
+    XmlPool pool = new XmlPool(XmlCatalog.lenient());
+    DocumentBuilder builder = pool.borrowDocumentBuilder();
+    builder.setEntityResolver(null);
+    pool.release(builder);
+    // the lenient catalog is set again, the entity is read as empty
+    Assert.assertEquals("", pool.parse(xml(ENTITY)).getDocumentElement().getTextContent());
+    Assert.assertEquals(1, pool.getDocumentBuilderCounter().getCreated());
+  }
+
+  private static InputStream xml(String content) {
+    return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+  }
+
+}